@@ -0,0 +1,214 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Find the invoices paid by a bank statement line: a combination of the open amounts, each one
+ * with or without its discount, that adds up exactly to the amount of the line.
+ *
+ * The search is a depth first search over the invoices sorted by amount, a branch is cut when
+ * the amount left is negative, bigger than the sum of the invoices left or not a multiple of the
+ * greatest common divisor of the amounts of the invoices left (e.g. cents against round amounts),
+ * and the search stops when the time budget is exhausted. The search goes on after the first combination,
+ * a combination is only returned when it is the only one. The amounts are compared as long values
+ * in the smallest unit of the amounts.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusAllocationSolver {
+
+	/** Check the time every this number of nodes */
+	private static final int TIME_CHECK_NODES = 256;
+
+	private final int m_count;
+	/** Open amount of the invoices, sorted descending */
+	private final long[] m_full;
+	/** Open amount minus the discount, the same as the open amount without discount */
+	private final long[] m_net;
+	/** Invoices that can anchor the combination */
+	private final boolean[] m_anchor;
+	/** Sum of the open amounts from each position to the end */
+	private final long[] m_suffix;
+	/** Greatest common divisor of the amounts with and without discount from each position to the end */
+	private final long[] m_suffixGcd;
+	private final HibiscusOpenInvoiceIndex.OpenInvoice[] m_invoices;
+	/** Choice by position: 0 not paid, 1 paid the open amount, 2 paid with the discount */
+	private final int[] m_choice;
+	/** Choices of the first combination found */
+	private int[] m_solution = null;
+	/** Combinations found, the search stops at the second one */
+	private int m_solutions = 0;
+	private final boolean m_anchorRequired;
+	private final long m_deadline;
+	private int m_nodes = 0;
+	private boolean m_timeout = false;
+
+	private HibiscusAllocationSolver(List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices, int anchors, int scale, long timeMillis) {
+		m_count = invoices.size();
+		Integer[] order = new Integer[m_count];
+		for (int i = 0; i < m_count; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> invoices.get(b).openAmt.compareTo(invoices.get(a).openAmt));
+		m_full = new long[m_count];
+		m_net = new long[m_count];
+		m_anchor = new boolean[m_count];
+		m_suffix = new long[m_count + 1];
+		m_suffixGcd = new long[m_count + 1];
+		m_invoices = new HibiscusOpenInvoiceIndex.OpenInvoice[m_count];
+		m_choice = new int[m_count];
+		for (int i = 0; i < m_count; i++) {
+			HibiscusOpenInvoiceIndex.OpenInvoice invoice = invoices.get(order[i]);
+			m_invoices[i] = invoice;
+			m_full[i] = toLong(invoice.openAmt, scale);
+			m_net[i] = invoice.discountAmt != null && invoice.discountAmt.signum() > 0
+					? toLong(invoice.openAmt.subtract(invoice.discountAmt), scale) : m_full[i];
+			m_anchor[i] = order[i] < anchors;
+		}
+		for (int i = m_count - 1; i >= 0; i--) {
+			m_suffix[i] = m_suffix[i + 1] + m_full[i];
+			m_suffixGcd[i] = gcd(m_suffixGcd[i + 1], m_full[i]);
+			if (m_net[i] > 0)
+				m_suffixGcd[i] = gcd(m_suffixGcd[i], m_net[i]);
+		}
+		m_anchorRequired = anchors > 0 && anchors < m_count;
+		m_deadline = System.nanoTime() + timeMillis * 1000000;
+	}
+
+	/**
+	 * Find the combination of invoices that pays the amount
+	 * @param amount amount of the line, positive
+	 * @param invoices open invoices with positive open amount, the discount can be null when there is none
+	 * @param anchors number of invoices at the start of the list of which at least one must be paid,
+	 * 0 or the size of the list to allow any combination
+	 * @param timeMillis time budget of the search
+	 * @return allocation in the order of the list, null when there is no combination or it is not found in time,
+	 * empty when there are several combinations or the search ran out of time before checking there is only one
+	 */
+	static List<Allocation> solve(BigDecimal amount, List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices, int anchors, long timeMillis) {
+		if (amount.signum() <= 0 || invoices.isEmpty())
+			return null;
+		int scale = amount.scale();
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : invoices) {
+			scale = Math.max(scale, invoice.openAmt.scale());
+			if (invoice.discountAmt != null)
+				scale = Math.max(scale, invoice.discountAmt.scale());
+		}
+		HibiscusAllocationSolver solver;
+		long target;
+		try {
+			solver = new HibiscusAllocationSolver(invoices, anchors, scale, timeMillis);
+			target = toLong(amount, scale);
+		} catch (ArithmeticException e) {
+			// amounts out of the long range are left to the user
+			return null;
+		}
+		solver.search(0, target, false);
+		if (solver.m_solutions == 0)
+			return null;
+
+		List<Allocation> allocation = new ArrayList<Allocation>();
+		if (solver.m_solutions > 1 || solver.m_timeout)
+			return allocation;
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : invoices) {
+			for (int i = 0; i < solver.m_count; i++) {
+				if (solver.m_invoices[i] == invoice && solver.m_solution[i] != 0) {
+					boolean discount = solver.m_solution[i] == 2;
+					allocation.add(new Allocation(invoice, discount ? invoice.openAmt.subtract(invoice.discountAmt) : invoice.openAmt, discount));
+				}
+			}
+		}
+		return allocation;
+	}
+
+	/**
+	 * Count the combinations from the position, the first one is kept in m_solution
+	 */
+	private void search(int pos, long left, boolean anchored) {
+		if (m_solutions > 1 || m_timeout)
+			return;
+		if (left == 0) {
+			if ((anchored || !m_anchorRequired) && ++m_solutions == 1) {
+				// the positions after are not paid
+				m_solution = Arrays.copyOf(m_choice, m_count);
+				Arrays.fill(m_solution, pos, m_count, 0);
+			}
+			return;
+		}
+		if (left < 0 || pos == m_count || left > m_suffix[pos])
+			return;
+		// any combination of the invoices left is a multiple of their gcd
+		if (m_suffixGcd[pos] > 1 && left % m_suffixGcd[pos] != 0)
+			return;
+		if (++m_nodes % TIME_CHECK_NODES == 0 && System.nanoTime() > m_deadline) {
+			m_timeout = true;
+			return;
+		}
+		boolean anchor = anchored || m_anchor[pos];
+		m_choice[pos] = 1;
+		search(pos + 1, left - m_full[pos], anchor);
+		if (m_net[pos] != m_full[pos] && m_net[pos] > 0) {
+			m_choice[pos] = 2;
+			search(pos + 1, left - m_net[pos], anchor);
+		}
+		m_choice[pos] = 0;
+		search(pos + 1, left, anchored);
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private static long toLong(BigDecimal amount, int scale) {
+		return amount.setScale(scale).unscaledValue().longValueExact();
+	}
+
+	/**
+	 * Invoice paid by the line
+	 */
+	static class Allocation {
+		final HibiscusOpenInvoiceIndex.OpenInvoice invoice;
+		/** Amount paid, the open amount minus the discount when it is taken */
+		final BigDecimal amount;
+		final boolean discount;
+
+		Allocation(HibiscusOpenInvoiceIndex.OpenInvoice invoice, BigDecimal amount, boolean discount) {
+			this.invoice = invoice;
+			this.amount = amount;
+			this.discount = discount;
+		}
+	}
+
+}
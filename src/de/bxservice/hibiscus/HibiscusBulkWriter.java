@@ -0,0 +1,237 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.POInfo;
+import org.compiere.model.X_I_BankStatement;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+
+/**
+ * Writes complete I_BankStatement records using JDBC batches instead of saving a PO per line.
+ * The record is filled in a reusable X_I_BankStatement, so the dictionary defaults are still applied,
+ * and the values of the persistent columns are copied into the batch when the line is added.
+ * The record is never saved as a PO, so the model validators registered for I_BankStatement are not called.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusBulkWriter {
+
+	private final String m_trxName;
+	private final int m_batchSize;
+	private final int m_AD_Client_ID;
+	private final int m_AD_User_ID;
+	private final X_I_BankStatement m_line;
+	private final List<String> m_columns = new ArrayList<String>();
+	/** JDBC type of each column, the null values are bound typed */
+	private final List<Integer> m_sqlTypes = new ArrayList<Integer>();
+	private final boolean m_skipDuplicates;
+	private final String m_sql;
+	private PreparedStatement m_pstmt = null;
+	private int m_pending = 0;
+	private int m_count = 0;
+	private int m_skipped = 0;
+	private int m_batches = 0;
+
+	/**
+	 * @param ctx context
+	 * @param trxName transaction
+	 * @param batchSize number of lines sent to the database on each batch
+	 */
+	HibiscusBulkWriter(Properties ctx, String trxName, int batchSize) {
+		this(ctx, trxName, batchSize, false);
+	}
+
+	/**
+	 * @param ctx context
+	 * @param trxName transaction
+	 * @param batchSize number of lines sent to the database on each batch
+	 * @param skipDuplicates lines with a C_BankAccount_ID/EftTrxID already in I_BankStatement are not inserted,
+	 * checked by the insert itself with WHERE NOT EXISTS, using the index bxs_ibankstatement_trxid
+	 */
+	HibiscusBulkWriter(Properties ctx, String trxName, int batchSize, boolean skipDuplicates) {
+		m_trxName = trxName;
+		m_skipDuplicates = skipDuplicates;
+		m_batchSize = batchSize > 0 ? batchSize : 1;
+		m_AD_Client_ID = Env.getAD_Client_ID(ctx);
+		m_AD_User_ID = Env.getAD_User_ID(ctx);
+		m_line = new X_I_BankStatement(ctx, 0, trxName);
+
+		POInfo poInfo = POInfo.getPOInfo(ctx, X_I_BankStatement.Table_ID, trxName);
+		StringBuilder cols = new StringBuilder();
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < poInfo.getColumnCount(); i++) {
+			if (poInfo.isVirtualColumn(i))
+				continue;
+			String columnName = poInfo.getColumnName(i);
+			m_columns.add(columnName);
+			m_sqlTypes.add(getSqlType(poInfo.getColumnClass(i)));
+			if (cols.length() > 0) {
+				cols.append(",");
+				params.append(",");
+			}
+			cols.append(columnName);
+			params.append("?");
+		}
+		if (skipDuplicates)
+			// the rows committed by other imports since the ids were read are not inserted again
+			m_sql = "INSERT INTO " + X_I_BankStatement.Table_Name + " (" + cols + ") SELECT " + params + " FROM DUAL "
+					+ "WHERE NOT EXISTS (SELECT 1 FROM " + X_I_BankStatement.Table_Name + " WHERE C_BankAccount_ID=? AND EftTrxID=?)";
+		else
+			m_sql = "INSERT INTO " + X_I_BankStatement.Table_Name + " (" + cols + ") VALUES (" + params + ")";
+	}
+
+	/**
+	 * @param clazz class of the column values
+	 * @return JDBC type to bind a null value of the column
+	 */
+	private static int getSqlType(Class<?> clazz) {
+		if (clazz == Integer.class)
+			return Types.INTEGER;
+		if (clazz == BigDecimal.class)
+			return Types.NUMERIC;
+		if (clazz == Timestamp.class)
+			return Types.TIMESTAMP;
+		return Types.VARCHAR;
+	}
+
+	/**
+	 * Get the line to fill, the same instance is returned on every call,
+	 * so every column written by the loader must be set for each line
+	 * @return the reusable import line
+	 */
+	X_I_BankStatement getLine() {
+		return m_line;
+	}
+
+	/**
+	 * Add the current content of the line to the batch
+	 * @return the new I_BankStatement_ID
+	 */
+	int add() {
+		int I_BankStatement_ID = DB.getNextID(m_AD_Client_ID, X_I_BankStatement.Table_Name, m_trxName);
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try {
+			if (m_pstmt == null)
+				m_pstmt = DB.prepareStatement(m_sql, m_trxName);
+			int idx = 0;
+			for (String columnName : m_columns) {
+				Object value;
+				if (X_I_BankStatement.COLUMNNAME_I_BankStatement_ID.equals(columnName))
+					value = I_BankStatement_ID;
+				else if (X_I_BankStatement.COLUMNNAME_I_BankStatement_UU.equals(columnName))
+					value = UUID.randomUUID().toString();
+				else if ("Created".equals(columnName) || "Updated".equals(columnName))
+					value = now;
+				else if ("CreatedBy".equals(columnName) || "UpdatedBy".equals(columnName))
+					value = m_AD_User_ID;
+				else
+					value = m_line.get_Value(columnName);
+				if (value instanceof Boolean)
+					value = ((Boolean) value).booleanValue() ? "Y" : "N";
+				// a select list has no column to take the type of an untyped null from
+				if (value == null)
+					m_pstmt.setNull(idx + 1, m_sqlTypes.get(idx));
+				else
+					DB.setParameter(m_pstmt, idx + 1, value);
+				idx++;
+			}
+			if (m_skipDuplicates) {
+				DB.setParameter(m_pstmt, ++idx, m_line.getC_BankAccount_ID());
+				DB.setParameter(m_pstmt, ++idx, m_line.getEftTrxID());
+			}
+			m_pstmt.addBatch();
+		} catch (SQLException e) {
+			throw new DBException(e, m_sql);
+		}
+		m_count++;
+		if (++m_pending >= m_batchSize)
+			flush();
+		return I_BankStatement_ID;
+	}
+
+	/**
+	 * Send the pending lines to the database
+	 */
+	void flush() {
+		if (m_pending == 0)
+			return;
+		try {
+			int[] counts = m_pstmt.executeBatch();
+			m_pending = 0;
+			m_batches++;
+			// lines not inserted because the Umsatz_Id was already there
+			for (int count : counts) {
+				if (count == 0)
+					m_skipped++;
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, m_sql);
+		}
+	}
+
+	/**
+	 * Release the statement, pending lines not flushed are discarded
+	 */
+	void close() {
+		DB.close(m_pstmt);
+		m_pstmt = null;
+		m_pending = 0;
+	}
+
+	/**
+	 * @return number of lines added
+	 */
+	int getCount() {
+		return m_count;
+	}
+
+	/**
+	 * @return number of lines sent to the database but not inserted because they were duplicated
+	 */
+	int getSkipped() {
+		return m_skipped;
+	}
+
+	/**
+	 * @return number of batches sent to the database
+	 */
+	int getBatchCount() {
+		return m_batches;
+	}
+
+}
@@ -0,0 +1,332 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Timestamp;
+import java.text.ParseException;
+
+import org.adempiere.exceptions.AdempiereException;
+
+/**
+ * Streaming reader for the CSV file generated by Hibiscus with the template
+ * HibiscusCSVVelocityFormat/de.willuhn.jameica.hbci.rmi.Umsatz.csv.vm
+ *
+ * The columns are decoded by position into a reusable HibiscusRow, following the
+ * rules of the Excel north europe preference: semicolon delimiter, double quote as quote
+ * and escape character, quoted columns can contain newlines, an empty column is read
+ * as null, quoted or not, like SuperCSV did, and empty lines are ignored.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusCSVReader implements Closeable {
+
+	private static final char QUOTE = '"';
+	private static final char DELIMITER = ';';
+	/** Optional last column with the problem of the row, written to the reject file */
+	static final String ERROR_COLUMN = "Error";
+
+	private final Reader m_reader;
+	private final char[] m_buffer = new char[64 * 1024];
+	private int m_pos = 0;
+	private int m_len = 0;
+	private final StringBuilder m_field = new StringBuilder(256);
+	private final HibiscusValueParser m_parser = new HibiscusValueParser();
+	private HibiscusWatermarks m_watermarks = null;
+	/** Records read, the header included */
+	private int m_records = 0;
+	/** Rows skipped because they are below the watermark */
+	private int m_skipped = 0;
+	/** Number of columns of the file, the template columns plus the optional error column */
+	private int m_columns = HibiscusRow.COLUMN_COUNT;
+	/** Return the rows that cannot be decoded with the error instead of failing */
+	private boolean m_lenient = false;
+
+	/**
+	 * @param reader character stream of the CSV file, it is read in blocks so it doesn't need to be buffered
+	 */
+	HibiscusCSVReader(Reader reader) {
+		m_reader = reader;
+	}
+
+	/**
+	 * Skip the rows already loaded according to the watermarks
+	 * @param watermarks marks of the accounts, null to read all the rows
+	 */
+	void setWatermarks(HibiscusWatermarks watermarks) {
+		m_watermarks = watermarks;
+	}
+
+	/**
+	 * Return the rows that cannot be decoded instead of throwing the exception,
+	 * the row comes with the raw values read and the problem in HibiscusRow.error
+	 * @param lenient
+	 */
+	void setLenient(boolean lenient) {
+		m_lenient = lenient;
+	}
+
+	/**
+	 * @return number of records read so far including the header and the skipped rows,
+	 * when next fails it is the number of the record before the failing one
+	 */
+	int getRecordCount() {
+		return m_records;
+	}
+
+	/**
+	 * Count the record that could not be decoded, to continue reading after it
+	 */
+	void skipFailedRecord() {
+		m_records++;
+	}
+
+	/**
+	 * @return number of rows skipped because they are below the watermark
+	 */
+	int getSkippedCount() {
+		return m_skipped;
+	}
+
+	/**
+	 * @return true when the file is a reject file written by HibiscusRejectWriter, with the additional error column
+	 */
+	boolean isRejectFile() {
+		return m_columns > HibiscusRow.COLUMN_COUNT;
+	}
+
+	/**
+	 * Read and verify the header of the file, the columns must follow the template order
+	 * @throws IOException
+	 */
+	void readHeader() throws IOException {
+		String[] header = new String[HibiscusRow.COLUMN_COUNT + 1];
+		int cols = readRecord(header);
+		if (cols < 0)
+			throw new AdempiereException("the file is empty");
+		// a reject file can be loaded again, its error column is ignored
+		if (cols == HibiscusRow.COLUMN_COUNT + 1 && ERROR_COLUMN.equals(header[HibiscusRow.COLUMN_COUNT]))
+			m_columns = cols;
+		checkColumnCount(cols);
+		for (int i = 0; i < HibiscusRow.COLUMN_COUNT; i++) {
+			if (!HibiscusRow.COLUMN_NAMES[i].equals(header[i]))
+				throw new AdempiereException("unexpected column '" + header[i] + "' at position " + (i+1) + ", expected " + HibiscusRow.COLUMN_NAMES[i]);
+		}
+		m_records++;
+	}
+
+	/**
+	 * Read the next row
+	 * @param row holder to fill, raw values and parsed values are replaced
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	boolean next(HibiscusRow row) throws IOException {
+		while (true) {
+			row.error = null;
+			boolean decoded;
+			try {
+				int cols = readRecord(row.values);
+				if (cols < 0)
+					return false;
+				// the values of a short record are not left from the previous row
+				for (int i = cols; i < row.values.length; i++)
+					row.values[i] = null;
+				checkColumnCount(cols);
+				decoded = decode(row);
+			} catch (AdempiereException e) {
+				if (!m_lenient)
+					throw e;
+				row.error = e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString();
+				row.recordNo = ++m_records;
+				return true;
+			}
+			m_records++;
+			if (decoded) {
+				row.recordNo = m_records;
+				return true;
+			}
+			m_skipped++;
+		}
+	}
+
+	/**
+	 * Parse the typed columns of the row
+	 * @param row
+	 * @return false when the row is below the watermark, it is not decoded completely
+	 */
+	private boolean decode(HibiscusRow row) {
+		notNull(row, HibiscusRow.Konto_AccountNo);
+		notNull(row, HibiscusRow.Konto_RoutingNo);
+		row.kontoId = parseInt(row, HibiscusRow.Konto_Id);
+		row.umsatzId = parseInt(row, HibiscusRow.Umsatz_Id);
+		if (m_watermarks != null && m_watermarks.isBelow(row.kontoId, row.umsatzId)) {
+			// amount and checksum are not needed for a row already loaded
+			if (m_watermarks.isImported(row.kontoId, row.umsatzId, parseDate(row, HibiscusRow.Datum)))
+				return false;
+		}
+		String betrag = notNull(row, HibiscusRow.Betrag);
+		try {
+			row.betrag = m_parser.parseAmount(betrag);
+		} catch (NumberFormatException e) {
+			throw new AdempiereException("'" + betrag + "' could not be parsed as a BigDecimal");
+		}
+		row.datum = parseDate(row, HibiscusRow.Datum);
+		row.valuta = parseDate(row, HibiscusRow.Valuta);
+		String checksum = row.get(HibiscusRow.Checksum);
+		if (checksum == null) {
+			row.checksum = null;
+		} else {
+			try {
+				row.checksum = Long.valueOf(checksum);
+			} catch (NumberFormatException e) {
+				throw new AdempiereException("'" + checksum + "' could not be parsed as a Long");
+			}
+		}
+		row.checksumOk = null;
+		row.duplicateInFile = false;
+		return true;
+	}
+
+	private String notNull(HibiscusRow row, int column) {
+		String value = row.get(column);
+		if (value == null)
+			throw new AdempiereException(HibiscusRow.COLUMN_NAMES[column] + ": null value encountered");
+		return value;
+	}
+
+	private int parseInt(HibiscusRow row, int column) {
+		String value = notNull(row, column);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new AdempiereException("'" + value + "' could not be parsed as an Integer");
+		}
+	}
+
+	private Timestamp parseDate(HibiscusRow row, int column) {
+		String value = notNull(row, column);
+		try {
+			return m_parser.parseDate(value);
+		} catch (ParseException e) {
+			throw new AdempiereException("'" + value + "' could not be parsed as a Date");
+		}
+	}
+
+	private void checkColumnCount(int cols) {
+		if (cols != m_columns)
+			throw new AdempiereException("the number of columns (" + cols + ") must match the number of columns of the template (" + m_columns + ")");
+	}
+
+	/**
+	 * Read one record into target, the previous values in target are reused when the content is the same,
+	 * this way the repeated values like account, dates or codes are not allocated again for every row
+	 * @param target values by column position, columns beyond its length are counted but not stored
+	 * @return number of columns of the record, -1 at the end of the file
+	 * @throws IOException
+	 */
+	private int readRecord(String[] target) throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == '\n' || c == '\r');
+		if (c == -1)
+			return -1;
+
+		int col = 0;
+		while (true) {
+			m_field.setLength(0);
+			if (c == QUOTE) {
+				while (true) {
+					c = read();
+					if (c == -1)
+						throw new AdempiereException("unexpected end of file while reading quoted column " + (col+1));
+					if (c == QUOTE) {
+						c = read();
+						if (c != QUOTE)
+							break; // closing quote
+					} else if (c == '\r') {
+						// multiline columns are read with \n as line separator
+						c = '\n';
+						if (read() != '\n')
+							unread();
+					}
+					m_field.append((char) c);
+				}
+			}
+			while (c != DELIMITER && c != '\n' && c != '\r' && c != -1) {
+				m_field.append((char) c);
+				c = read();
+			}
+
+			if (col < target.length) {
+				String previous = target[col];
+				// the template quotes every column, an empty optional value is null
+				if (m_field.length() == 0)
+					target[col] = null;
+				else if (previous == null || !previous.contentEquals(m_field))
+					target[col] = m_field.toString();
+			}
+			col++;
+
+			if (c == DELIMITER) {
+				c = read();
+				continue;
+			}
+			if (c == '\r' && read() != '\n')
+				unread();
+			return col;
+		}
+	}
+
+	private int read() throws IOException {
+		if (m_pos >= m_len) {
+			m_len = m_reader.read(m_buffer, 0, m_buffer.length);
+			m_pos = 0;
+			if (m_len <= 0) {
+				m_len = 0;
+				return -1;
+			}
+		}
+		return m_buffer[m_pos++];
+	}
+
+	/**
+	 * Step back the last character returned by read, not valid after the end of the file
+	 */
+	private void unread() {
+		if (m_len > 0)
+			m_pos--;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_reader.close();
+	}
+
+}
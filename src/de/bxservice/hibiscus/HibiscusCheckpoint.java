@@ -0,0 +1,327 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.adempiere.exceptions.AdempiereException;
+
+/**
+ * Progress of a file imported with chunked commits (BXS_HIBISCUS_COMMIT_EVERY), kept in x.checkpoint
+ * next to the input file. It is written after each commit, so it always describes work already in the database:
+ * the stages completed, and during the load the last committed row (CSV part, record number and Umsatz_Id).
+ * A new run of the same file resumes from it, the checkpoint is ignored when the content of the file changed.
+ * The rows committed after the last checkpoint, when the server stopped before writing it, are skipped by the loader.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusCheckpoint {
+
+	private static final String FILE_HASH = "FileHash";
+	private static final String STAGES = "Stages";
+	private static final String PART = "Part";
+	private static final String RECORD = "Record";
+	private static final String UMSATZ_ID = "UmsatzId";
+	private static final String ROWS = "Rows";
+	private static final String REJECT_LENGTH = "RejectLength";
+	private static final String LAST_BANK_STATEMENT = "LastBankStatement";
+
+	/** Hash of the input files by path, length and modification time, the file is read once per run,
+	 * the entry is removed by {@link #release()} when the run ends */
+	private static final ConcurrentHashMap<String, String> s_hashes = new ConcurrentHashMap<String, String>();
+
+	private final File m_file;
+	/** Key of the hash in s_hashes */
+	private final String m_key;
+	private final String m_fileHash;
+	/** Codes of the stages completed */
+	private String m_stages = "";
+	/** CSV part of the input, for zip archives with several files */
+	private int m_part = -1;
+	/** Record number of the last committed row in the part */
+	private int m_record = 0;
+	private int m_umsatzId = 0;
+	/** Rows committed by the load */
+	private int m_rows = 0;
+	/** Length of the reject file at the last commit */
+	private long m_rejectLength = 0;
+	/** Last statement of the bank account before the import, -1 when the import didn't start */
+	private int m_lastBankStatement_ID = -1;
+
+	private HibiscusCheckpoint(File file, String key, String fileHash) {
+		m_file = file;
+		m_key = key;
+		m_fileHash = fileHash;
+	}
+
+	/**
+	 * Get the checkpoint of an input file, a checkpoint of another content of the file is discarded.
+	 * The caller must call {@link #release()} when its run ends
+	 * @param fileName input file
+	 * @return checkpoint, empty when there is nothing to resume
+	 */
+	static HibiscusCheckpoint get(String fileName) {
+		File input = new File(fileName);
+		String key = input.getAbsolutePath() + "|" + input.length() + "|" + input.lastModified();
+		String fileHash = s_hashes.computeIfAbsent(key, k -> hash(input));
+		HibiscusCheckpoint checkpoint = new HibiscusCheckpoint(getCheckpointFile(input), key, fileHash);
+		if (!checkpoint.read())
+			checkpoint.m_file.delete();
+		return checkpoint;
+	}
+
+	/**
+	 * Read the checkpoint file
+	 * @return false when the file was written for another content of the input file
+	 */
+	private boolean read() {
+		if (!m_file.exists())
+			return true;
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(m_file)) {
+			properties.load(in);
+		} catch (IOException e) {
+			throw new AdempiereException(m_file.getAbsolutePath(), e);
+		}
+		if (!m_fileHash.equals(properties.getProperty(FILE_HASH)))
+			return false;
+		m_stages = properties.getProperty(STAGES, "");
+		m_part = Integer.parseInt(properties.getProperty(PART, "-1"));
+		m_record = Integer.parseInt(properties.getProperty(RECORD, "0"));
+		m_umsatzId = Integer.parseInt(properties.getProperty(UMSATZ_ID, "0"));
+		m_rows = Integer.parseInt(properties.getProperty(ROWS, "0"));
+		m_rejectLength = Long.parseLong(properties.getProperty(REJECT_LENGTH, "0"));
+		m_lastBankStatement_ID = Integer.parseInt(properties.getProperty(LAST_BANK_STATEMENT, "-1"));
+		return true;
+	}
+
+	/**
+	 * @param input input file
+	 * @return checkpoint file, x.csv, x.csv.gz or x.zip have x.checkpoint
+	 */
+	static File getCheckpointFile(File input) {
+		String name = input.getName();
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+			lower = lower.substring(0, lower.length() - 3);
+		}
+		if (lower.endsWith(".csv") || lower.endsWith(".zip"))
+			name = name.substring(0, name.length() - 4);
+		return new File(input.getAbsoluteFile().getParentFile(), name + ".checkpoint");
+	}
+
+	/**
+	 * SHA-256 of the content of the file
+	 */
+	private static String hash(File file) {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buffer)) > 0)
+				digest.update(buffer, 0, len);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			throw new AdempiereException(file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return true when a previous run committed part of the work
+	 */
+	boolean isResume() {
+		return m_stages.length() > 0 || m_part >= 0;
+	}
+
+	/**
+	 * @param stage
+	 * @return true when the stage was completed and committed by a previous run
+	 */
+	boolean isCompleted(HibiscusImportStage stage) {
+		return m_stages.contains(stage.getCode());
+	}
+
+	/**
+	 * @param part CSV part of the input
+	 * @param recordNo record number in the part
+	 * @return true when the row was committed by a previous run
+	 */
+	boolean isCommitted(int part, int recordNo) {
+		return part < m_part || (part == m_part && recordNo <= m_record);
+	}
+
+	/**
+	 * @return true when the part was loaded completely by a previous run
+	 */
+	boolean isCommitted(int part) {
+		return part < m_part;
+	}
+
+	/**
+	 * @return part of the last committed row, -1 when the load didn't commit any row
+	 */
+	int getPart() {
+		return m_part;
+	}
+
+	/**
+	 * @return record number of the last committed row
+	 */
+	int getRecord() {
+		return m_record;
+	}
+
+	/**
+	 * @return Umsatz_Id of the last committed row
+	 */
+	int getUmsatzId() {
+		return m_umsatzId;
+	}
+
+	/**
+	 * @return rows committed by the load
+	 */
+	int getRows() {
+		return m_rows;
+	}
+
+	/**
+	 * @return length of the reject file at the last commit
+	 */
+	long getRejectLength() {
+		return m_rejectLength;
+	}
+
+	/**
+	 * @return last statement of the bank account before the import, -1 when not recorded
+	 */
+	int getLastBankStatement_ID() {
+		return m_lastBankStatement_ID;
+	}
+
+	/**
+	 * Record the last statement of the bank account before the import, the statements
+	 * created by the import are the following ones
+	 * @param C_BankStatement_ID
+	 */
+	void saveLastBankStatement_ID(int C_BankStatement_ID) {
+		read();
+		m_lastBankStatement_ID = C_BankStatement_ID;
+		save();
+	}
+
+	/**
+	 * Record the last row committed by the load
+	 * @param part CSV part of the input
+	 * @param recordNo record number in the part
+	 * @param umsatzId Umsatz_Id of the row
+	 * @param rows rows committed
+	 * @param rejectLength length of the reject file, 0 when there is none
+	 */
+	void saveRow(int part, int recordNo, int umsatzId, int rows, long rejectLength) {
+		m_part = part;
+		m_record = recordNo;
+		m_umsatzId = umsatzId;
+		m_rows = rows;
+		m_rejectLength = rejectLength;
+		save();
+	}
+
+	/**
+	 * Record a stage committed
+	 * @param stage
+	 */
+	void saveStage(HibiscusImportStage stage) {
+		// the load writes its progress through its own instance
+		read();
+		if (!isCompleted(stage))
+			m_stages += stage.getCode();
+		save();
+	}
+
+	/**
+	 * Write the checkpoint, replacing the previous one in one step
+	 */
+	private void save() {
+		Properties properties = new Properties();
+		properties.setProperty(FILE_HASH, m_fileHash);
+		properties.setProperty(STAGES, m_stages);
+		properties.setProperty(PART, String.valueOf(m_part));
+		properties.setProperty(RECORD, String.valueOf(m_record));
+		properties.setProperty(UMSATZ_ID, String.valueOf(m_umsatzId));
+		properties.setProperty(ROWS, String.valueOf(m_rows));
+		properties.setProperty(REJECT_LENGTH, String.valueOf(m_rejectLength));
+		properties.setProperty(LAST_BANK_STATEMENT, String.valueOf(m_lastBankStatement_ID));
+		File tmp = new File(m_file.getPath() + ".tmp");
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				properties.store(out, "Hibiscus import checkpoint");
+			}
+			try {
+				Files.move(tmp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new AdempiereException(m_file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Remove the checkpoint once the file is imported completely
+	 */
+	void delete() {
+		m_file.delete();
+		m_stages = "";
+		m_part = -1;
+		m_record = 0;
+		m_lastBankStatement_ID = -1;
+	}
+
+	/**
+	 * Forget the hash of the input file, the next run of the file reads it again
+	 */
+	void release() {
+		s_hashes.remove(m_key, m_fileHash);
+	}
+
+}
@@ -0,0 +1,257 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum of a Hibiscus record, based on Hibiscus method de.willuhn.jameica.hbci.server.UmsatzImpl.getChecksum()
+ * <pre>
+ *   (""+art).toUpperCase() + kontoid + betrag + customerref + gegenkontoBLZ + gegenkontoNummer
+ *   + (""+gegenkontoName).toUpperCase() + primanota + (""+mergedzweck).toUpperCase()
+ *   + DATEFORMAT.format(datum) + DATEFORMAT.format(valuta)
+ * </pre>
+ * The string is not built, the bytes are fed to one CRC32 through a small buffer.
+ *
+ * The reader returns the empty columns as null, like the null values of Hibiscus written by the
+ * velocity template as empty strings ($!{...}). Null is concatenated as "null" and the purpose lines
+ * are trimmed and joined with a space, like getAttribute("mergedzweck").
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusChecksum {
+
+	private static final String NULL = "null";
+
+	private final CRC32 m_crc = new CRC32();
+	private final byte[] m_buffer = new byte[256];
+	private int m_len = 0;
+	private char m_highSurrogate = 0;
+	private final Calendar m_calendar = new GregorianCalendar();
+	private long m_checksum = 0;
+
+	/**
+	 * Verify the checksum of the row
+	 * @param row
+	 * @return true if the Checksum column matches the calculated value
+	 */
+	boolean verify(HibiscusRow row) {
+		m_checksum = calculate(row);
+		if (row.checksum == null)
+			return false;
+		return m_checksum == row.checksum.longValue();
+	}
+
+	/**
+	 * @return checksum calculated in the last call to verify
+	 */
+	long getChecksum() {
+		return m_checksum;
+	}
+
+	/**
+	 * Calculate the checksum of the row
+	 * @param row
+	 * @return checksum
+	 */
+	long calculate(HibiscusRow row) {
+		m_crc.reset();
+		m_len = 0;
+		m_highSurrogate = 0;
+
+		append(row.get(HibiscusRow.Art), true);
+		// wenigstens die ID vom Konto muss mit rein. Andernfalls haben zwei gleich aussehende Umsaetze auf verschiedenen Konten die gleiche Checksumme
+		appendInt(row.kontoId);
+		append(Double.toString(row.betrag.doubleValue()), false);
+		append(row.get(HibiscusRow.CustomerRef), false);
+		append(row.get(HibiscusRow.Empfaenger_Blz), false);
+		append(row.get(HibiscusRow.Empfaenger_Konto), false);
+		append(row.get(HibiscusRow.Empfaenger_Name), true);
+		append(row.get(HibiscusRow.PrimaNota), false);
+		// saldo not included
+		appendMergedZweck(row);
+		appendDate(row.datum);
+		appendDate(row.valuta);
+
+		flush();
+		return m_crc.getValue();
+	}
+
+	/**
+	 * Purpose lines trimmed, without empty lines and separated by a space, as Hibiscus mergedzweck
+	 */
+	private void appendMergedZweck(HibiscusRow row) {
+		boolean first = true;
+		for (int column = HibiscusRow.Zweck; column <= HibiscusRow.Zweck3; column++) {
+			String zweck = row.get(column);
+			if (zweck == null)
+				continue;
+			int start = 0;
+			int len = zweck.length();
+			while (start <= len) {
+				int end = zweck.indexOf('\n', start);
+				if (end < 0)
+					end = len;
+				int from = start;
+				int to = end;
+				while (from < to && zweck.charAt(from) <= ' ')
+					from++;
+				while (to > from && zweck.charAt(to - 1) <= ' ')
+					to--;
+				if (to > from) {
+					if (!first)
+						appendChar(' ', false);
+					first = false;
+					for (int i = from; i < to; i++)
+						appendChar(zweck.charAt(i), true);
+				}
+				start = end + 1;
+			}
+		}
+		if (first)
+			append(NULL, true);
+	}
+
+	private void appendDate(Date date) {
+		m_calendar.setTime(date);
+		appendDigits(m_calendar.get(Calendar.DAY_OF_MONTH), 2);
+		appendChar('.', false);
+		appendDigits(m_calendar.get(Calendar.MONTH) + 1, 2);
+		appendChar('.', false);
+		appendDigits(m_calendar.get(Calendar.YEAR), 4);
+	}
+
+	private void appendDigits(int value, int minDigits) {
+		int divisor = 1;
+		for (int i = 1; i < minDigits || value / divisor >= 10; i++)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10)
+			appendChar((char) ('0' + (value / divisor) % 10), false);
+	}
+
+	private void appendInt(int value) {
+		if (value < 0) {
+			appendChar('-', false);
+			value = -value;
+		}
+		appendDigits(value, 1);
+	}
+
+	private void append(String value, boolean upperCase) {
+		if (value == null)
+			value = NULL;
+		if (upperCase && !isLatin1(value)) {
+			// full unicode case mapping is left to String
+			value = value.toUpperCase();
+			upperCase = false;
+		}
+		for (int i = 0; i < value.length(); i++)
+			appendChar(value.charAt(i), upperCase);
+	}
+
+	private boolean isLatin1(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > 0xFF)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Append a character encoded in UTF-8
+	 */
+	private void appendChar(char c, boolean upperCase) {
+		if (upperCase) {
+			if (c == '\u00DF') {
+				// String.toUpperCase maps sharp s to SS
+				appendChar('S', false);
+				appendChar('S', false);
+				return;
+			}
+			if (c < 0x80) {
+				if (c >= 'a' && c <= 'z')
+					c -= 32;
+			} else {
+				c = Character.toUpperCase(c);
+			}
+		}
+		if (m_len + 4 > m_buffer.length)
+			drain();
+		if (m_highSurrogate != 0) {
+			char high = m_highSurrogate;
+			m_highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				m_buffer[m_len++] = (byte) (0xF0 | (cp >> 18));
+				m_buffer[m_len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				m_buffer[m_len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				m_buffer[m_len++] = (byte) (0x80 | (cp & 0x3F));
+				return;
+			}
+			m_buffer[m_len++] = '?';
+			if (m_len + 4 > m_buffer.length)
+				drain();
+		}
+		if (c < 0x80) {
+			m_buffer[m_len++] = (byte) c;
+		} else if (c < 0x800) {
+			m_buffer[m_len++] = (byte) (0xC0 | (c >> 6));
+			m_buffer[m_len++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			m_highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			m_buffer[m_len++] = '?';
+		} else {
+			m_buffer[m_len++] = (byte) (0xE0 | (c >> 12));
+			m_buffer[m_len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			m_buffer[m_len++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	/**
+	 * Feed the buffered bytes to the CRC
+	 */
+	private void drain() {
+		if (m_len > 0) {
+			m_crc.update(m_buffer, 0, m_len);
+			m_len = 0;
+		}
+	}
+
+	private void flush() {
+		if (m_highSurrogate != 0) {
+			// unpaired high surrogate at the end
+			m_highSurrogate = 0;
+			drain();
+			m_buffer[m_len++] = '?';
+		}
+		drain();
+	}
+
+}
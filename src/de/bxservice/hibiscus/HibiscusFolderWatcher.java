@@ -0,0 +1,360 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.adempiere.util.ProcessUtil;
+import org.adempiere.util.ServerContext;
+import org.compiere.model.MBankStatementLoader;
+import org.compiere.model.MPInstance;
+import org.compiere.model.MProcess;
+import org.compiere.model.MSysConfig;
+import org.compiere.process.ProcessInfo;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.ProcessInfoUtil;
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Util;
+
+/**
+ * Watch the folders where Hibiscus writes its exports and run the process
+ * LoadImportProcessBankStatement (load, import and match) for every new file.
+ *
+ * The folders are configured at system level, they are read when the bundle starts:
+ * <pre>
+ *   BXS_HIBISCUS_WATCH_FOLDERS      list of C_BankStatementLoader_ID:directory separated by semicolon
+ *                                   e.g. 1000000:/srv/hibiscus/giro;1000001:/srv/hibiscus/tagesgeld
+ *   BXS_HIBISCUS_WATCH_DEBOUNCE_MS  a file is imported when its size and date didn't change for this time, default 5000
+ *   BXS_HIBISCUS_WATCH_THREADS      number of files imported at the same time, default 2
+ *   BXS_HIBISCUS_WATCH_CREATE_PAYMENTS  create the payments after matching, default N
+ * </pre>
+ * The process runs with the client and organization of the loader and as the user who last updated it.
+ * A file imported successfully is moved to the subfolder processed together with its reject file,
+ * a failed file stays in the folder with its checkpoint and is tried again when it is written again
+ * or when the server restarts.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+public class HibiscusFolderWatcher {
+
+	/**	Logger */
+	private static final CLogger s_log = CLogger.getCLogger(HibiscusFolderWatcher.class);
+
+	/** Process LoadImportProcessBankStatement */
+	private static final String PROCESS_UU = "dbb159a4-be31-42cb-a03f-e8efda0ca0ee";
+	/** Subfolder for the files already imported */
+	private static final String PROCESSED_FOLDER = "processed";
+
+	private volatile boolean m_running = false;
+	private Thread m_thread = null;
+	private WatchService m_watchService = null;
+	private ScheduledExecutorService m_debouncer = null;
+	private ExecutorService m_executor = null;
+	private long m_debounceMillis;
+	private boolean m_createPayments;
+	/** Loader of each watched folder */
+	private final Map<Path, Integer> m_loaders = new HashMap<Path, Integer>();
+	/** Scheduled check of the files still being written */
+	private final Map<Path, ScheduledFuture<?>> m_pending = new ConcurrentHashMap<Path, ScheduledFuture<?>>();
+	/** Files submitted for import and not finished yet */
+	private final Set<Path> m_inProgress = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Start watching, the configuration is read in the background as the database
+	 * is not available yet when the bundle is started with the server
+	 */
+	public void activate() {
+		m_running = true;
+		m_thread = new Thread(this::watch, "HibiscusFolderWatcher");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	/**
+	 * Stop watching, the imports running are finished in the background
+	 */
+	public void deactivate() {
+		m_running = false;
+		if (m_watchService != null) {
+			try {
+				m_watchService.close();
+			} catch (IOException e) {
+				s_log.log(Level.WARNING, "", e);
+			}
+		}
+		if (m_thread != null)
+			m_thread.interrupt();
+		if (m_debouncer != null)
+			m_debouncer.shutdownNow();
+		if (m_executor != null)
+			m_executor.shutdown();
+		m_pending.clear();
+		HibiscusStageMetrics.unregisterAll();
+	}
+
+	/**
+	 * Register the folders and dispatch the events of the watch service until deactivated
+	 */
+	private void watch() {
+		try {
+			while (m_running && !DB.isConnected())
+				Thread.sleep(10000);
+			if (!m_running)
+				return;
+			String folders = MSysConfig.getValue("BXS_HIBISCUS_WATCH_FOLDERS", 0);
+			if (Util.isEmpty(folders, true))
+				return;
+			m_debounceMillis = MSysConfig.getIntValue("BXS_HIBISCUS_WATCH_DEBOUNCE_MS", 5000, 0);
+			m_createPayments = MSysConfig.getBooleanValue("BXS_HIBISCUS_WATCH_CREATE_PAYMENTS", false, 0);
+			int threads = Math.max(1, MSysConfig.getIntValue("BXS_HIBISCUS_WATCH_THREADS", 2, 0));
+
+			m_watchService = FileSystems.getDefault().newWatchService();
+			m_debouncer = Executors.newSingleThreadScheduledExecutor(threadFactory("HibiscusFolderWatcher-Debounce-"));
+			m_executor = Executors.newFixedThreadPool(threads, threadFactory("HibiscusFolderWatcher-Import-"));
+			for (String folder : folders.split(";")) {
+				if (Util.isEmpty(folder, true))
+					continue;
+				int pos = folder.indexOf(':');
+				int C_BankStatementLoader_ID = pos > 0 ? toInt(folder.substring(0, pos).trim()) : -1;
+				if (C_BankStatementLoader_ID <= 0) {
+					s_log.warning("BXS_HIBISCUS_WATCH_FOLDERS: expected C_BankStatementLoader_ID:directory -> " + folder);
+					continue;
+				}
+				Path dir = Paths.get(folder.substring(pos + 1).trim()).toAbsolutePath().normalize();
+				if (!Files.isDirectory(dir)) {
+					s_log.warning("BXS_HIBISCUS_WATCH_FOLDERS: not a directory -> " + dir);
+					continue;
+				}
+				dir.register(m_watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				m_loaders.put(dir, C_BankStatementLoader_ID);
+				s_log.info("Watching " + dir + " for C_BankStatementLoader_ID=" + C_BankStatementLoader_ID);
+				// files exported while the server was down
+				scan(dir);
+			}
+			if (m_loaders.isEmpty())
+				return;
+
+			while (m_running) {
+				WatchKey key = m_watchService.take();
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						scan(dir);
+					else
+						schedule(dir, dir.resolve((Path) event.context()));
+				}
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// deactivated
+		} catch (Exception e) {
+			s_log.log(Level.SEVERE, "Hibiscus folder watcher stopped", e);
+		}
+	}
+
+	/**
+	 * Schedule the files of the folder
+	 * @param dir
+	 * @throws IOException
+	 */
+	private void scan(Path dir) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream)
+				schedule(dir, file);
+		}
+	}
+
+	/**
+	 * Check the file after the debounce time, every new event for the file starts the time again
+	 * @param dir watched folder
+	 * @param file
+	 */
+	private void schedule(Path dir, Path file) {
+		if (!m_running || !isImportFile(file) || m_inProgress.contains(file))
+			return;
+		try {
+			long size = Files.size(file);
+			long modified = Files.getLastModifiedTime(file).toMillis();
+			ScheduledFuture<?> previous = m_pending.put(file,
+					m_debouncer.schedule(() -> check(dir, file, size, modified), m_debounceMillis, TimeUnit.MILLISECONDS));
+			if (previous != null)
+				previous.cancel(false);
+		} catch (IOException e) {
+			// deleted or moved meanwhile
+		}
+	}
+
+	/**
+	 * Submit the file for import when it didn't change since it was scheduled,
+	 * otherwise it is still being written and it is checked again later,
+	 * also when no more events arrive as it happens with some network shares
+	 */
+	private void check(Path dir, Path file, long size, long modified) {
+		try {
+			if (Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified) {
+				schedule(dir, file);
+				return;
+			}
+		} catch (IOException e) {
+			m_pending.remove(file);
+			return;
+		}
+		m_pending.remove(file);
+		if (m_inProgress.add(file))
+			m_executor.submit(() -> importFile(dir, file));
+	}
+
+	/**
+	 * @param file
+	 * @return true for the export files, the reject and checkpoint files written next to them are ignored
+	 */
+	private boolean isImportFile(Path file) {
+		String name = file.getFileName().toString();
+		String lower = name.toLowerCase();
+		return !name.startsWith(".")
+				&& (lower.endsWith(".csv") || lower.endsWith(".gz") || lower.endsWith(".zip"))
+				&& !lower.endsWith(".rejected.csv")
+				&& Files.isRegularFile(file);
+	}
+
+	/**
+	 * Run LoadImportProcessBankStatement for the file in the client of the loader of the folder
+	 * @param dir watched folder
+	 * @param file
+	 */
+	private void importFile(Path dir, Path file) {
+		int C_BankStatementLoader_ID = m_loaders.get(dir);
+		Properties ctx = new Properties();
+		try {
+			MBankStatementLoader loader = new MBankStatementLoader(ctx, C_BankStatementLoader_ID, null);
+			if (loader.get_ID() <= 0) {
+				s_log.warning("C_BankStatementLoader_ID=" + C_BankStatementLoader_ID + " not found for " + file);
+				return;
+			}
+			Env.setContext(ctx, Env.AD_CLIENT_ID, loader.getAD_Client_ID());
+			Env.setContext(ctx, Env.AD_ORG_ID, loader.getAD_Org_ID());
+			Env.setContext(ctx, Env.AD_USER_ID, loader.getUpdatedBy());
+			ServerContext.setCurrentInstance(ctx);
+
+			int AD_Process_ID = DB.getSQLValueEx(null, "SELECT AD_Process_ID FROM AD_Process WHERE AD_Process_UU=?", PROCESS_UU);
+			MProcess process = MProcess.get(ctx, AD_Process_ID);
+			MPInstance instance = new MPInstance(process, 0, -1, null);
+			instance.saveEx();
+
+			ProcessInfo pi = new ProcessInfo(process.getName(), process.getAD_Process_ID());
+			pi.setParameter(new ProcessInfoParameter[] {
+					new ProcessInfoParameter("C_BankStatementLoader_ID", C_BankStatementLoader_ID, null, null, null),
+					new ProcessInfoParameter("FileName", file.toString(), null, null, null),
+					new ProcessInfoParameter("BAY_IsMatchBS", "Y", null, null, null),
+					new ProcessInfoParameter("BAY_IsCreatePaymentsBS", m_createPayments ? "Y" : "N", null, null, null)
+			});
+			pi.setAD_Client_ID(loader.getAD_Client_ID());
+			pi.setAD_User_ID(loader.getUpdatedBy());
+			pi.setAD_Process_ID(process.getAD_Process_ID());
+			pi.setAD_PInstance_ID(instance.getAD_PInstance_ID());
+			pi.setAD_Process_UU(process.getAD_Process_UU());
+			pi.setClassName(process.getClassname());
+
+			long start = System.currentTimeMillis();
+			ProcessUtil.startJavaProcess(ctx, pi, null, true);
+			ProcessInfoUtil.saveLogToDB(pi);
+			if (pi.isError()) {
+				s_log.warning(file + " -> " + pi.getSummary() + " (AD_PInstance_ID=" + pi.getAD_PInstance_ID() + ")");
+				return;
+			}
+			s_log.info(file + " -> " + pi.getSummary() + " in " + (System.currentTimeMillis() - start) + " ms");
+			moveToProcessed(dir, file);
+			Path rejectFile = HibiscusRejectWriter.getRejectFile(file.toString()).toPath();
+			if (Files.exists(rejectFile))
+				moveToProcessed(dir, rejectFile);
+		} catch (Exception e) {
+			s_log.log(Level.SEVERE, file.toString(), e);
+		} finally {
+			m_inProgress.remove(file);
+			ServerContext.dispose();
+		}
+	}
+
+	/**
+	 * Move the file to the processed subfolder, a file with the same name there is kept
+	 * @param dir watched folder
+	 * @param file
+	 * @throws IOException
+	 */
+	private void moveToProcessed(Path dir, Path file) throws IOException {
+		Path target = Files.createDirectories(dir.resolve(PROCESSED_FOLDER)).resolve(file.getFileName());
+		if (Files.exists(target))
+			target = target.resolveSibling(file.getFileName() + "." + System.currentTimeMillis());
+		Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int toInt(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger m_count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + m_count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,80 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.util.Properties;
+
+import org.compiere.model.MSysConfig;
+import org.compiere.util.Env;
+
+/**
+ * SysConfig values used by HibiscusLoader, read once when the load starts
+ * so the loop over the lines only reads plain fields.
+ * See HibiscusLoader for the description of the keys.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusImportSettings {
+
+	/** Context variable forcing a full import of the run, set by LoadImportProcessBankStatement */
+	static final String CTX_FULL_IMPORT = "BXS_HIBISCUS_FULL_IMPORT";
+
+	final int AD_Client_ID;
+	final String statementDescription;
+	final boolean validateDupsUmsatzId;
+	final boolean validateChecksum;
+	final boolean forceChecksum;
+	final boolean bulkInsert;
+	final int bulkBatchSize;
+	final boolean pipelined;
+	final int pipelineQueueSize;
+	final boolean incremental;
+	final boolean skipDuplicates;
+	final boolean rejectInvalidRows;
+	final int commitEvery;
+
+	/**
+	 * @param ctx context
+	 */
+	HibiscusImportSettings(Properties ctx) {
+		AD_Client_ID = Env.getAD_Client_ID(ctx);
+		statementDescription = MSysConfig.getValue("BXS_HIBISCUS_STATEMENT_DESCRIPTION", "Uploaded via de.bxservice.hibiscus.HibiscusLoader", AD_Client_ID);
+		validateDupsUmsatzId = MSysConfig.getBooleanValue("BXS_HIBISCUS_VALIDATE_DUPS_UMSATZID", true, AD_Client_ID);
+		validateChecksum = MSysConfig.getBooleanValue("BXS_HIBISCUS_VALIDATE_CHECKSUM", true, AD_Client_ID);
+		forceChecksum = MSysConfig.getBooleanValue("BXS_HIBISCUS_FORCE_CHECKSUM", false, AD_Client_ID);
+		bulkInsert = MSysConfig.getBooleanValue("BXS_HIBISCUS_BULK_INSERT", false, AD_Client_ID);
+		bulkBatchSize = MSysConfig.getIntValue("BXS_HIBISCUS_BULK_BATCH_SIZE", 500, AD_Client_ID);
+		pipelined = MSysConfig.getBooleanValue("BXS_HIBISCUS_PIPELINED", false, AD_Client_ID);
+		pipelineQueueSize = MSysConfig.getIntValue("BXS_HIBISCUS_PIPELINE_QUEUE_SIZE", 256, AD_Client_ID);
+		// a full import can also be requested for a single run with the process parameter BAY_IsFullImport
+		incremental = MSysConfig.getBooleanValue("BXS_HIBISCUS_INCREMENTAL", false, AD_Client_ID)
+				&& !"Y".equals(Env.getContext(ctx, CTX_FULL_IMPORT));
+		skipDuplicates = MSysConfig.getBooleanValue("BXS_HIBISCUS_SKIP_DUPLICATES", false, AD_Client_ID);
+		rejectInvalidRows = MSysConfig.getBooleanValue("BXS_HIBISCUS_REJECT_INVALID_ROWS", false, AD_Client_ID);
+		commitEvery = MSysConfig.getIntValue("BXS_HIBISCUS_COMMIT_EVERY", 0, AD_Client_ID);
+	}
+
+}
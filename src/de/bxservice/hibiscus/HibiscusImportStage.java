@@ -0,0 +1,326 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MBankAccount;
+import org.compiere.model.MBankStatement;
+import org.compiere.model.X_I_BankStatement;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.util.DB;
+
+/**
+ * Standard processes chained by LoadImportProcessBankStatement.
+ *
+ * Each stage builds the parameters of its process from a typed Input, and counts the rows
+ * it affects before and after the execution, in the transaction of the run.
+ * The stages are selected and ordered with the process parameter BAY_ImportStages, a comma separated
+ * list of the codes (default D,L,I,M,P), a stage must come after the stage it depends on.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+enum HibiscusImportStage {
+
+	/**
+	 * Delete Import of I_BankStatement, limited to the rows of the bank account so the imports
+	 * of other accounts are not affected, and to the rows of the loader without bank account,
+	 * only the rows of the loader are deleted when the account is not known
+	 */
+	DELETE_IMPORT("D", LoadImportProcessBankStatement.PROCESS_DELETE_IMPORT, null, -1) {
+		@Override
+		ProcessInfoParameter[] getParameters(Input input) {
+			return new ProcessInfoParameter[] {parameter("AD_Table_ID", X_I_BankStatement.Table_ID)};
+		}
+
+		@Override
+		boolean execute(Input input) {
+			if (input.C_BankAccount_ID <= 0)
+				DB.executeUpdateEx("DELETE FROM I_BankStatement " + LOADER_ROWS,
+						new Object[] {input.AD_Client_ID, input.C_BankStatementLoader_ID}, input.trxName);
+			else
+				DB.executeUpdateEx("DELETE FROM I_BankStatement " + ACCOUNT_ROWS,
+						new Object[] {input.AD_Client_ID, input.C_BankAccount_ID, input.C_BankStatementLoader_ID}, input.trxName);
+			return true;
+		}
+
+		@Override
+		int countRows(Input input) {
+			if (input.C_BankAccount_ID <= 0)
+				return DB.getSQLValueEx(input.trxName, "SELECT COUNT(*) FROM I_BankStatement " + LOADER_ROWS,
+						input.AD_Client_ID, input.C_BankStatementLoader_ID);
+			return DB.getSQLValueEx(input.trxName, "SELECT COUNT(*) FROM I_BankStatement " + ACCOUNT_ROWS,
+					input.AD_Client_ID, input.C_BankAccount_ID, input.C_BankStatementLoader_ID);
+		}
+	},
+
+	/** Load Bank Statement with the loader of the process */
+	LOAD("L", LoadImportProcessBankStatement.PROCESS_LOAD_BANK_STATEMENT, null, 1) {
+		@Override
+		ProcessInfoParameter[] getParameters(Input input) {
+			return new ProcessInfoParameter[] {
+					parameter("C_BankStatementLoader_ID", input.C_BankStatementLoader_ID),
+					new ProcessInfoParameter("FileName", input.fileName, null, input.fileName, null)};
+		}
+
+		@Override
+		int countRows(Input input) {
+			return countImportLines(input);
+		}
+	},
+
+	/** Import Bank Statement of the bank account, the rows imported before are left to DELETE_IMPORT */
+	IMPORT("I", LoadImportProcessBankStatement.PROCESS_IMPORT_BANK_STATEMENT, LOAD, -1) {
+		@Override
+		ProcessInfoParameter[] getParameters(Input input) {
+			MBankAccount bankAccount = MBankAccount.get(input.C_BankAccount_ID);
+			return new ProcessInfoParameter[] {
+					parameter("AD_Client_ID", input.AD_Client_ID),
+					parameter("AD_Org_ID", bankAccount.getAD_Org_ID()),
+					parameter("C_BankAccount_ID", input.C_BankAccount_ID),
+					// the old imported rows of the whole client would be deleted, the delete stage removes the ones of the account
+					new ProcessInfoParameter("DeleteOldImported", "N", null, "N", null)};
+		}
+
+		@Override
+		int countRows(Input input) {
+			return countImportLines(input);
+		}
+	},
+
+	/** Match Bank Statement on each statement created by the import */
+	MATCH("M", LoadImportProcessBankStatement.PROCESS_MATCH_BANK_STATEMENT, IMPORT, 1) {
+		@Override
+		int countRows(Input input) {
+			return DB.getSQLValueEx(input.trxName, "SELECT COUNT(*) FROM C_BankStatementLine WHERE C_BankStatement_ID=? "
+					+ "AND (C_BPartner_ID IS NOT NULL OR C_Invoice_ID IS NOT NULL OR C_Payment_ID IS NOT NULL)",
+					input.bankStatement.getC_BankStatement_ID());
+		}
+
+		@Override
+		boolean isBankStatementRequired() {
+			return true;
+		}
+	},
+
+	/** Create Payment for the matched lines of the statement */
+	CREATE_PAYMENT("P", LoadImportProcessBankStatement.PROCESS_CREATE_PAYMENT, MATCH, 1) {
+		@Override
+		int countRows(Input input) {
+			return DB.getSQLValueEx(input.trxName, "SELECT COUNT(*) FROM C_BankStatementLine WHERE C_BankStatement_ID=? AND C_Payment_ID IS NOT NULL",
+					input.bankStatement.getC_BankStatement_ID());
+		}
+
+		@Override
+		boolean isBankStatementRequired() {
+			return true;
+		}
+	};
+
+	/** Default value of BAY_ImportStages */
+	static final String DEFAULT_STAGES = "D,L,I,M,P";
+
+	/** Rows of I_BankStatement deleted by DELETE_IMPORT: client, bank account and loader for the rows without bank account */
+	private static final String ACCOUNT_ROWS = "WHERE AD_Client_ID=? AND (C_BankAccount_ID=? OR (C_BankAccount_ID IS NULL AND C_BankStatementLoader_ID=?))";
+	/** Rows of I_BankStatement deleted by DELETE_IMPORT when the bank account is not known: client and loader */
+	private static final String LOADER_ROWS = "WHERE AD_Client_ID=? AND C_BankStatementLoader_ID=?";
+
+	private final String m_code;
+	private final int m_AD_Process_ID;
+	private final HibiscusImportStage m_prerequisite;
+	/** 1 when the stage adds the rows it counts, -1 when it removes them */
+	private final int m_sign;
+
+	private HibiscusImportStage(String code, int AD_Process_ID, HibiscusImportStage prerequisite, int sign) {
+		m_code = code;
+		m_AD_Process_ID = AD_Process_ID;
+		m_prerequisite = prerequisite;
+		m_sign = sign;
+	}
+
+	/**
+	 * @return code of the stage in BAY_ImportStages
+	 */
+	String getCode() {
+		return m_code;
+	}
+
+	/**
+	 * @return process executed by the stage
+	 */
+	int getAD_Process_ID() {
+		return m_AD_Process_ID;
+	}
+
+	/**
+	 * @return true when the stage is run once for the bank account, before its first file or after its last file
+	 */
+	boolean isAccountLevel() {
+		return this == DELETE_IMPORT;
+	}
+
+	/**
+	 * Execute the stage directly instead of its process
+	 * @param input
+	 * @return false when the process must be executed
+	 */
+	boolean execute(Input input) {
+		return false;
+	}
+
+	/**
+	 * @return true when the process runs on the bank statement record, the stage is skipped without a statement
+	 */
+	boolean isBankStatementRequired() {
+		return false;
+	}
+
+	/**
+	 * @param input
+	 * @return parameters of the process, null when it has none
+	 */
+	ProcessInfoParameter[] getParameters(Input input) {
+		return null;
+	}
+
+	/**
+	 * Count the rows the stage works on, called before and after the process
+	 * @param input
+	 * @return number of rows
+	 */
+	abstract int countRows(Input input);
+
+	/**
+	 * @param before rows counted before the process
+	 * @param after rows counted after the process
+	 * @return rows added or removed by the stage
+	 */
+	int getRows(int before, int after) {
+		return m_sign * (after - before);
+	}
+
+	/**
+	 * Lines in the import table for the bank account not imported yet
+	 */
+	private static int countImportLines(Input input) {
+		return DB.getSQLValueEx(input.trxName, "SELECT COUNT(*) FROM I_BankStatement WHERE AD_Client_ID=? AND C_BankAccount_ID=? AND I_IsImported='N'",
+				input.AD_Client_ID, input.C_BankAccount_ID);
+	}
+
+	private static ProcessInfoParameter parameter(String name, int value) {
+		return new ProcessInfoParameter(name, BigDecimal.valueOf(value), null, String.valueOf(value), null);
+	}
+
+	/**
+	 * Parse the stages of BAY_ImportStages
+	 * @param stages comma separated codes, null or empty for the default stages
+	 * @return stages in execution order
+	 */
+	static List<HibiscusImportStage> parse(String stages) {
+		if (stages == null || stages.trim().length() == 0)
+			stages = DEFAULT_STAGES;
+		List<HibiscusImportStage> list = new ArrayList<HibiscusImportStage>();
+		for (String code : stages.split(",")) {
+			code = code.trim();
+			if (code.length() == 0)
+				continue;
+			HibiscusImportStage stage = get(code);
+			if (stage == null)
+				throw new AdempiereException("Unknown import stage '" + code + "' in " + stages);
+			if (list.contains(stage))
+				throw new AdempiereException("Import stage '" + code + "' repeated in " + stages);
+			list.add(stage);
+		}
+		for (int i = 0; i < list.size(); i++) {
+			HibiscusImportStage stage = list.get(i);
+			// a stage can be left out, but not run before the stage it depends on
+			if (stage.m_prerequisite != null && list.indexOf(stage.m_prerequisite) > i)
+				throw new AdempiereException("Import stage '" + stage.m_code + "' must come after '" + stage.m_prerequisite.m_code + "' in " + stages);
+			// the account level stages are executed before or after all the files of the account
+			if (stage.isAccountLevel() && i > 0 && i < list.size() - 1)
+				throw new AdempiereException("Import stage '" + stage.m_code + "' must be the first or the last in " + stages);
+		}
+		return list;
+	}
+
+	/**
+	 * @param code
+	 * @return stage for the code, null if not found
+	 */
+	static HibiscusImportStage get(String code) {
+		for (HibiscusImportStage stage : values()) {
+			if (stage.m_code.equalsIgnoreCase(code))
+				return stage;
+		}
+		return null;
+	}
+
+	/**
+	 * Typed input of the stages for one run
+	 */
+	static class Input {
+		final int AD_Client_ID;
+		final String trxName;
+		final int C_BankStatementLoader_ID;
+		String fileName;
+		int C_BankAccount_ID;
+		/** Statement the stage runs on, one of the statements created by the import */
+		MBankStatement bankStatement;
+		/** Last statement of the bank account before the import, the statements created by the import come after it */
+		int lastBankStatement_ID = -1;
+
+		Input(int AD_Client_ID, String trxName, int C_BankStatementLoader_ID) {
+			this.AD_Client_ID = AD_Client_ID;
+			this.trxName = trxName;
+			this.C_BankStatementLoader_ID = C_BankStatementLoader_ID;
+		}
+	}
+
+	/**
+	 * Rows and elapsed time of a stage, summed over the runs
+	 */
+	static class Stats {
+		int runs = 0;
+		int rows = 0;
+		long millis = 0;
+
+		void add(int rows, long millis) {
+			this.runs++;
+			this.rows += rows;
+			this.millis += millis;
+		}
+
+		void add(Stats stats) {
+			this.runs += stats.runs;
+			this.rows += stats.rows;
+			this.millis += stats.millis;
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Input file of the loader: a plain CSV file, a gzip compressed CSV file or a zip archive with
+ * one or more CSV files. The format is detected from the first bytes, not from the file name,
+ * and the content is decompressed while it is read, without temporary files.
+ *
+ * Usage: while (input.next()) read input.getReader(), then close the input.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusInput implements Closeable {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final String m_fileName;
+	private final InputStream m_stream;
+	private final ZipInputStream m_zip;
+	private final CountingInputStream m_counter;
+	private final long m_length;
+	private String m_name;
+	private boolean m_started = false;
+
+	private HibiscusInput(String fileName, InputStream stream, ZipInputStream zip, CountingInputStream counter, long length) {
+		m_fileName = fileName;
+		m_stream = stream;
+		m_zip = zip;
+		m_counter = counter;
+		m_length = length;
+		m_name = fileName;
+	}
+
+	/**
+	 * Open the file detecting the compression
+	 * @param file
+	 * @return input positioned before the first CSV
+	 * @throws IOException
+	 */
+	static HibiscusInput open(File file) throws IOException {
+		CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+		InputStream in = new BufferedInputStream(counter, 64 * 1024);
+		try {
+			in.mark(4);
+			int b0 = in.read();
+			int b1 = in.read();
+			int b2 = in.read();
+			int b3 = in.read();
+			in.reset();
+			if (b0 == 0x1f && b1 == 0x8b)
+				return new HibiscusInput(file.getName(), new GZIPInputStream(in, 64 * 1024), null, counter, file.length());
+			if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) {
+				ZipInputStream zip = new ZipInputStream(in, CHARSET);
+				return new HibiscusInput(file.getName(), zip, zip, counter, file.length());
+			}
+			return new HibiscusInput(file.getName(), in, null, counter, file.length());
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Move to the next CSV of the input
+	 * @return false when there are no more CSV files
+	 * @throws IOException
+	 */
+	boolean next() throws IOException {
+		if (m_zip == null) {
+			if (m_started)
+				return false;
+			m_started = true;
+			return true;
+		}
+		ZipEntry entry;
+		while ((entry = m_zip.getNextEntry()) != null) {
+			if (!entry.isDirectory()) {
+				m_name = entry.getName();
+				m_started = true;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return reader of the current CSV, closing it doesn't close the input
+	 */
+	Reader getReader() {
+		InputStream notClosing = new FilterInputStream(m_stream) {
+			@Override
+			public void close() {
+				// the input is closed by its owner
+			}
+		};
+		return new InputStreamReader(notClosing, CHARSET);
+	}
+
+	/**
+	 * @return name of the current CSV, the entry name in a zip archive
+	 */
+	String getName() {
+		return m_name;
+	}
+
+	/**
+	 * @return true when the input is a zip archive
+	 */
+	boolean isArchive() {
+		return m_zip != null;
+	}
+
+	/**
+	 * @return name of the input file
+	 */
+	String getFileName() {
+		return m_fileName;
+	}
+
+	/**
+	 * @return bytes read from the file so far, compressed bytes for gzip and zip, to estimate the progress
+	 */
+	long getPosition() {
+		return m_counter.m_count;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	long getLength() {
+		return m_length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_stream.close();
+	}
+
+	/**
+	 * Count the bytes read from the file, the count is read by the loader thread
+	 * while a pipelined parse stage reads the file
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private volatile long m_count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				m_count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				m_count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			m_count += skipped;
+			return skipped;
+		}
+
+	}
+
+}
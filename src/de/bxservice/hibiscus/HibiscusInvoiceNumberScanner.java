@@ -0,0 +1,381 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over a set of invoice numbers, it finds all the numbers
+ * contained in a text in one pass over the text, whatever the number of invoices.
+ *
+ * The numbers are compared ignoring case, and whitespace in the text is skipped, so a number
+ * written with spaces or split in two lines is found. A number must not be glued to a digit
+ * when it starts or ends with a digit, or to a letter when it starts or ends with a letter,
+ * so RE480212 finds 480212 but 14802120 doesn't. Whitespace or a separator ends a number, so numbers listed
+ * as 480212 480213, 480212, 480213 or 480212/480213 are all found, unless the digits around are a date (dd.mm.yyyy),
+ * an amount (480212,50) or an IBAN written in groups of four digits.
+ * The numbers with only digits shorter than the min length are not scanned, they would be found
+ * in the postcodes, dates and amounts of the memo. Overlapping numbers are resolved keeping
+ * the one starting first, the longest one when they start at the same position.
+ *
+ * The trie is kept in arrays, the children of a node as a linked list of siblings,
+ * as most of the invoice numbers share their prefix.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusInvoiceNumberScanner {
+
+	private static final int ROOT = 0;
+
+	private final String[] m_numbers;
+	/** Min length of the numbers with only digits */
+	private final int m_minDigits;
+	/** Length of each number without whitespace */
+	private final int[] m_lengths;
+
+	/** Nodes of the trie */
+	private char[] m_label = new char[1024];
+	private int[] m_firstChild = new int[1024];
+	private int[] m_nextSibling = new int[1024];
+	/** Longest proper suffix of the node that is also in the trie */
+	private int[] m_fail = new int[1024];
+	/** Number ending at the node, -1 if none */
+	private int[] m_output = new int[1024];
+	/** Next node in the fail chain with an output, ROOT if none */
+	private int[] m_dictLink = new int[1024];
+	private int m_size = 0;
+
+	/**
+	 * @param numbers invoice numbers, the position of the numbers is not changed
+	 * @param minDigits min length of the numbers with only digits, the shorter ones are not scanned
+	 */
+	HibiscusInvoiceNumberScanner(String[] numbers, int minDigits) {
+		m_numbers = numbers;
+		m_minDigits = minDigits;
+		m_lengths = new int[numbers.length];
+		newNode('\0');
+		for (int i = 0; i < numbers.length; i++)
+			add(i);
+		buildLinks();
+	}
+
+	private int newNode(char label) {
+		if (m_size == m_label.length) {
+			int capacity = m_size * 2;
+			m_label = Arrays.copyOf(m_label, capacity);
+			m_firstChild = Arrays.copyOf(m_firstChild, capacity);
+			m_nextSibling = Arrays.copyOf(m_nextSibling, capacity);
+			m_fail = Arrays.copyOf(m_fail, capacity);
+			m_output = Arrays.copyOf(m_output, capacity);
+			m_dictLink = Arrays.copyOf(m_dictLink, capacity);
+		}
+		int node = m_size++;
+		m_label[node] = label;
+		m_firstChild[node] = -1;
+		m_nextSibling[node] = -1;
+		m_fail[node] = ROOT;
+		m_output[node] = -1;
+		m_dictLink[node] = ROOT;
+		return node;
+	}
+
+	private int child(int node, char c) {
+		for (int child = m_firstChild[node]; child >= 0; child = m_nextSibling[child]) {
+			if (m_label[child] == c)
+				return child;
+		}
+		return -1;
+	}
+
+	private void add(int index) {
+		String number = m_numbers[index];
+		if (number == null || isShortNumeric(number))
+			return;
+		int node = ROOT;
+		int length = 0;
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (Character.isWhitespace(c))
+				continue;
+			c = Character.toUpperCase(c);
+			int next = child(node, c);
+			if (next < 0) {
+				next = newNode(c);
+				m_nextSibling[next] = m_firstChild[node];
+				m_firstChild[node] = next;
+			}
+			node = next;
+			length++;
+		}
+		m_lengths[index] = length;
+		// the first of the numbers that only differ in case or whitespace is kept
+		if (node != ROOT && m_output[node] < 0)
+			m_output[node] = index;
+	}
+
+	/**
+	 * @param number
+	 * @return true when the number has only digits and less than the min length
+	 */
+	private boolean isShortNumeric(String number) {
+		int digits = 0;
+		for (int i = 0; i < number.length(); i++) {
+			char c = number.charAt(i);
+			if (Character.isWhitespace(c))
+				continue;
+			if (!Character.isDigit(c))
+				return false;
+			digits++;
+		}
+		return digits < m_minDigits;
+	}
+
+	/**
+	 * Fail and dictionary links, breadth first so the links of the shorter suffixes are ready
+	 */
+	private void buildLinks() {
+		int[] queue = new int[m_size];
+		int head = 0;
+		int tail = 0;
+		for (int child = m_firstChild[ROOT]; child >= 0; child = m_nextSibling[child])
+			queue[tail++] = child;
+		while (head < tail) {
+			int node = queue[head++];
+			for (int child = m_firstChild[node]; child >= 0; child = m_nextSibling[child]) {
+				char c = m_label[child];
+				int fail = m_fail[node];
+				int next;
+				while ((next = child(fail, c)) < 0 && fail != ROOT)
+					fail = m_fail[fail];
+				m_fail[child] = next >= 0 ? next : ROOT;
+				int failNode = m_fail[child];
+				m_dictLink[child] = m_output[failNode] >= 0 ? failNode : m_dictLink[failNode];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * @return min length of the numbers with only digits
+	 */
+	int getMinDigits() {
+		return m_minDigits;
+	}
+
+	/**
+	 * @return number of nodes of the trie
+	 */
+	int getNodeCount() {
+		return m_size;
+	}
+
+	/**
+	 * Find the numbers in the text
+	 * @param text
+	 * @return numbers found, in the order of the text
+	 */
+	List<String> scan(String text) {
+		List<String> found = new ArrayList<String>();
+		if (text == null || m_size == 1)
+			return found;
+		// position in the text of each character fed to the automaton
+		int[] positions = new int[text.length()];
+		int fed = 0;
+		int node = ROOT;
+		// matches as start, end and number, at most a few per text
+		List<int[]> matches = new ArrayList<int[]>();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c))
+				continue;
+			c = Character.toUpperCase(c);
+			positions[fed++] = i;
+			int next;
+			while ((next = child(node, c)) < 0 && node != ROOT)
+				node = m_fail[node];
+			node = next >= 0 ? next : ROOT;
+			for (int out = m_output[node] >= 0 ? node : m_dictLink[node]; out != ROOT; out = m_dictLink[out]) {
+				int index = m_output[out];
+				matches.add(new int[] {positions[fed - m_lengths[index]], i, index});
+			}
+		}
+		if (matches.isEmpty())
+			return found;
+
+		// a number next to the start or the end of another one is delimited by it
+		boolean[] starts = new boolean[text.length()];
+		boolean[] ends = new boolean[text.length()];
+		for (int[] match : matches) {
+			starts[match[0]] = true;
+			ends[match[1]] = true;
+		}
+		List<int[]> delimited = new ArrayList<int[]>(matches.size());
+		for (int[] match : matches) {
+			if (isBoundary(text, match[0], match[1], -1, ends) && isBoundary(text, match[0], match[1], 1, starts))
+				delimited.add(match);
+		}
+		matches = delimited;
+
+		matches.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+		int end = -1;
+		for (int[] match : matches) {
+			if (match[0] <= end)
+				continue;
+			found.add(m_numbers[match[2]]);
+			end = match[1];
+		}
+		return found;
+	}
+
+	/**
+	 * @param text
+	 * @param start first position of the number
+	 * @param end last position of the number
+	 * @param step -1 before the number, 1 after it
+	 * @param others starts of the numbers found after it, or ends of the ones found before it
+	 * @return true when the character next to the number cannot continue it
+	 */
+	private boolean isBoundary(String text, int start, int end, int step, boolean[] others) {
+		int pos = step < 0 ? start - 1 : end + 1;
+		char edge = text.charAt(step < 0 ? start : end);
+		if (pos < 0 || pos >= text.length())
+			return true;
+		char c = text.charAt(pos);
+		if (!Character.isDigit(edge))
+			return !Character.isLetter(c);
+		// the whitespace is skipped by the scan, a digit glued to the number continues it
+		if (Character.isDigit(c))
+			return false;
+		pos = skipWhitespace(text, pos, step);
+		if (pos >= 0 && pos < text.length() && isSeparator(text.charAt(pos)))
+			pos = skipWhitespace(text, pos + step, step);
+		if (pos < 0 || pos >= text.length() || !Character.isDigit(text.charAt(pos)))
+			return true;
+		if (others[pos])
+			return true;
+		return !isDate(text, start, end) && !isAmount(text, start, end) && !isIBAN(text, start, end);
+	}
+
+	/**
+	 * @return true when the number is part of a date dd.mm.yyyy or dd.mm.yy
+	 */
+	private boolean isDate(String text, int start, int end) {
+		int from = expand(text, start, -1, ".");
+		int to = expand(text, end, 1, ".");
+		if (!isToken(text, from, to, "."))
+			return false;
+		String[] parts = text.substring(from, to + 1).split("\\.", -1);
+		return parts.length == 3 && parts[0].length() >= 1 && parts[0].length() <= 2 && parts[1].length() >= 1 && parts[1].length() <= 2
+				&& (parts[2].length() == 2 || parts[2].length() == 4);
+	}
+
+	/**
+	 * @return true when the number is part of an amount with two decimals, 480212,50 or 1.480.212,50
+	 */
+	private boolean isAmount(String text, int start, int end) {
+		int from = expand(text, start, -1, ".,");
+		int to = expand(text, end, 1, ".,");
+		if (!isToken(text, from, to, ".,") || to - from < 3)
+			return false;
+		char decimal = text.charAt(to - 2);
+		if (decimal != '.' && decimal != ',')
+			return false;
+		// the integer part, with the other separator for the thousands
+		for (int i = from; i < to - 2; i++) {
+			char c = text.charAt(i);
+			if (!Character.isDigit(c) && (c == decimal || i == from))
+				return false;
+		}
+		return Character.isDigit(text.charAt(to - 1)) && Character.isDigit(text.charAt(to));
+	}
+
+	/**
+	 * @return true when the number is part of an IBAN or account number written in groups of four,
+	 * like DE12 3456 7890 1234 5678 90
+	 */
+	private boolean isIBAN(String text, int start, int end) {
+		int from = start;
+		while (from > 0 && (Character.isDigit(text.charAt(from - 1))
+				|| (text.charAt(from - 1) == ' ' && from > 1 && Character.isDigit(text.charAt(from - 2)))))
+			from--;
+		// the country code starts the first group
+		if (from > 1 && Character.isLetter(text.charAt(from - 1)) && Character.isLetter(text.charAt(from - 2))
+				&& (from == 2 || !Character.isLetter(text.charAt(from - 3))))
+			from -= 2;
+		int to = end;
+		while (to < text.length() - 1 && (Character.isDigit(text.charAt(to + 1))
+				|| (text.charAt(to + 1) == ' ' && to < text.length() - 2 && Character.isDigit(text.charAt(to + 2)))))
+			to++;
+		String[] groups = text.substring(from, to + 1).split(" ");
+		if (groups.length < 3)
+			return false;
+		for (int i = 0; i < groups.length - 1; i++) {
+			if (groups[i].length() != 4)
+				return false;
+		}
+		return groups[groups.length - 1].length() <= 4;
+	}
+
+	/**
+	 * @return position of the last digit or separator in the direction of step
+	 */
+	private int expand(String text, int pos, int step, String separators) {
+		while (pos + step >= 0 && pos + step < text.length()
+				&& (Character.isDigit(text.charAt(pos + step)) || separators.indexOf(text.charAt(pos + step)) >= 0))
+			pos += step;
+		return pos;
+	}
+
+	/**
+	 * @return true when the text between the positions has only digits and separators, a number split
+	 * with whitespace is not a date or an amount
+	 */
+	private boolean isToken(String text, int from, int to, String separators) {
+		for (int i = from; i <= to; i++) {
+			char c = text.charAt(i);
+			if (!Character.isDigit(c) && separators.indexOf(c) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private int skipWhitespace(String text, int pos, int step) {
+		while (pos >= 0 && pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos += step;
+		return pos;
+	}
+
+	/**
+	 * @param c
+	 * @return true for the separators within dates and amounts
+	 */
+	private boolean isSeparator(char c) {
+		return c == '.' || c == ',' || c == '/' || c == ':' || c == '-';
+	}
+
+}
@@ -26,41 +26,31 @@
 package de.bxservice.hibiscus;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
-import java.util.zip.CRC32;
 
 import org.adempiere.exceptions.AdempiereException;
+import org.adempiere.exceptions.DBException;
 import org.compiere.impexp.BankStatementLoaderInterface;
-import org.compiere.model.MBankAccount;
 import org.compiere.model.MBankStatementLoader;
-import org.compiere.model.MSysConfig;
 import org.compiere.model.X_I_BankStatement;
 import org.compiere.util.CLogger;
 import org.compiere.util.DB;
 import org.compiere.util.Env;
 import org.compiere.util.Msg;
+import org.compiere.util.Trx;
 import org.compiere.util.Util;
-import org.supercsv.cellprocessor.Optional;
-import org.supercsv.cellprocessor.ParseDate;
-import org.supercsv.cellprocessor.ParseInt;
-import org.supercsv.cellprocessor.ParseLong;
-import org.supercsv.cellprocessor.constraint.NotNull;
-import org.supercsv.cellprocessor.ift.CellProcessor;
-import org.supercsv.io.CsvMapReader;
-import org.supercsv.io.ICsvMapReader;
-import org.supercsv.prefs.CsvPreference;
 
 /**
  * This bank statement loader for iDempiere is developed to import into I_BankStatement
@@ -74,8 +64,27 @@ public class HibiscusLoader implements BankStatementLoaderInterface {
 	 * SysConfig keys:
 	 * BXS_HIBISCUS_STATEMENT_DESCRIPTION - string to fill description in the statement header
 	 * BXS_HIBISCUS_VALIDATE_DUPS_UMSATZID - validate if the record is already loaded using the unique umsatzid
-	 * BXS_HIBISCUS_VALIDATE_CHECKSUM - validate the checksum
+	 * BXS_HIBISCUS_VALIDATE_CHECKSUM - validate the checksum, default true
 	 * BXS_HIBISCUS_FORCE_CHECKSUM - force the checksum - if true the record cannot be imported when the checksum fails
+	 * BXS_HIBISCUS_BULK_INSERT - write the complete I_BankStatement records in JDBC batches instead of saving each line twice,
+	 *   the lines are not saved as PO so the model validators of I_BankStatement are not called and they are not in the
+	 *   count of Load Bank Statement, the rows inserted are in the log of LoadImportProcessBankStatement, default false
+	 * BXS_HIBISCUS_BULK_BATCH_SIZE - number of records sent on each batch when BXS_HIBISCUS_BULK_INSERT is enabled, default 500
+	 * BXS_HIBISCUS_PIPELINED - decode and validate the CSV file on a separate thread while the lines are written, default false
+	 * BXS_HIBISCUS_PIPELINE_QUEUE_SIZE - max number of decoded rows waiting to be written when BXS_HIBISCUS_PIPELINED is enabled, default 256
+	 * BXS_HIBISCUS_INCREMENTAL - skip the rows with Umsatz_Id and Datum not above the last ones loaded for the bank account
+	 *   and already loaded, the rows below the mark never loaded are loaded as usual, default false
+	 *   a full import of a single run can be forced with the parameter BAY_IsFullImport of LoadImportProcessBankStatement,
+	 *   that sets the context variable BXS_HIBISCUS_FULL_IMPORT=Y
+	 * BXS_HIBISCUS_SKIP_DUPLICATES - skip and count the rows with an Umsatz_Id already loaded instead of failing, default false
+	 *   the bank account is locked (SELECT ... FOR UPDATE on C_BankAccount) until the load is committed, so the imports
+	 *   of the same account are serialized, and the lines are written in bulk with inserts checking the Umsatz_Id
+	 *   in I_BankStatement (WHERE NOT EXISTS)
+	 * BXS_HIBISCUS_REJECT_INVALID_ROWS - load the valid rows and write the rows failing parsing, bank account, duplicate or
+	 *   forced checksum validation to <file>.rejected.csv next to the input file, with an additional Error column, default false
+	 *   the corrected reject file can be loaded as any other file, the watermark of BXS_HIBISCUS_INCREMENTAL is not applied to it
+	 * BXS_HIBISCUS_COMMIT_EVERY - commit the load every N rows and record the progress in <file>.checkpoint,
+	 *   a failed or interrupted import of the same file resumes from it skipping the rows already committed, default 0 (one transaction)
 	 */
 
 	// MAPPING:
@@ -138,37 +147,50 @@ public class HibiscusLoader implements BankStatementLoaderInterface {
 	// |                         | SysConfig        | Description           |
 	// +-------------------------+------------------+-----------------------+
 
-	private static final String CSVCOLNAME_Konto_AccountNo = "Konto_AccountNo";
-	private static final String CSVCOLNAME_Konto_RoutingNo = "Konto_RoutingNo";
-	private static final String CSVCOLNAME_Konto_Id = "Konto_Id";
-	private static final String CSVCOLNAME_Umsatz_Id = "Umsatz_Id";
-	private static final String CSVCOLNAME_Empfaenger_Konto = "Empfaenger_Konto";
-	private static final String CSVCOLNAME_Empfaenger_Blz = "Empfaenger_Blz";
-	private static final String CSVCOLNAME_Empfaenger_Name = "Empfaenger_Name";
-	private static final String CSVCOLNAME_Betrag = "Betrag";
-	private static final String CSVCOLNAME_Zweck = "Zweck";
-	private static final String CSVCOLNAME_Zweck2 = "Zweck2";
-	private static final String CSVCOLNAME_Zweck3 = "Zweck3";
-	private static final String CSVCOLNAME_Datum = "Datum";
-	private static final String CSVCOLNAME_Valuta = "Valuta";
-	private static final String CSVCOLNAME_Kommentar = "Kommentar";
-	private static final String CSVCOLNAME_Checksum = "Checksum";
-	private static final String CSVCOLNAME_GvCode = "GvCode";
-	private static final String CSVCOLNAME_EndToEndId = "EndToEndId";
-	private static final String CSVCOLNAME_MandateId = "MandateId";
-	private static final String CSVCOLNAME_PrimaNota = "PrimaNota";
-	private static final String CSVCOLNAME_Art = "Art";
-	private static final String CSVCOLNAME_CustomerRef = "CustomerRef";
-	private static final String CSVCOLNAME_AddKey = "AddKey";
-	private static final String CSVCOLNAME_TxId = "TxId";
-	private static final String CSVCOLNAME_PurposeCode = "PurposeCode";
-	private static final String CSVCOLNAME_Empfaenger_Name2 = "Empfaenger_Name2";
-	private static final String CSVCOLNAME_UmsatzTyp_Name = "UmsatzTyp_Name";
-
 	private MBankStatementLoader m_bsl;
 	private StringBuffer m_errorMessage;
 	private StringBuffer m_errorDescription;
 	private StatementLine m_line;
+	/** SysConfig values of the current load */
+	private HibiscusImportSettings m_settings;
+	/** Bank account found for Konto_AccountNo|Konto_RoutingNo */
+	private Map<String, AccountContext> m_accounts = new HashMap<String, AccountContext>();
+	/** Bank account by C_BankAccount_ID */
+	private Map<Integer, AccountContext> m_accountsByID = new HashMap<Integer, AccountContext>();
+	private HibiscusBulkWriter m_bulkWriter = null;
+	private HibiscusRejectWriter m_rejectWriter = null;
+	private String m_statementRef;
+	private String m_statementName;
+	private Timestamp m_firstDateLine;
+	/** Last Umsatz_Id loaded per Konto_Id, null for a full import */
+	private HibiscusWatermarks m_watermarks = null;
+	/** Rows below the watermark found after the bank account was resolved */
+	private int m_skipped = 0;
+	/** Rows skipped because the Umsatz_Id was already loaded, when BXS_HIBISCUS_SKIP_DUPLICATES is enabled */
+	private int m_duplicates = 0;
+	/** Problem of the last validated line that doesn't stop the load */
+	private String m_lineWarning = null;
+	/** Metrics of the load: rows read and written, time writing and SQL statements issued for each phase */
+	private int m_rowsRead = 0;
+	private int m_rowsWritten = 0;
+	private long m_writeNanos = 0;
+	private int m_readSql = 0;
+	private int m_writeSql = 0;
+	/** Lines written by the bulk writer, not counted by MBankStatementLoader */
+	private int m_bulkInserted = 0;
+	/** Progress of the load when committing every BXS_HIBISCUS_COMMIT_EVERY rows, null otherwise */
+	private HibiscusCheckpoint m_checkpoint = null;
+	/** CSV part of the input being loaded */
+	private int m_part = 0;
+	/** The CSV part is a reject file, its rows are below the watermark but were never loaded */
+	private boolean m_rejectInput = false;
+	/** Rows written since the last commit */
+	private int m_uncommitted = 0;
+	/** Progress of the process running the load, null when nobody follows it */
+	private HibiscusProgress m_progress = null;
+
+	/** Max number of problems reported by validateLines */
+	private static final int MAX_PROBLEMS = 1000;
 
 	/** Static Logger */
 	private static CLogger s_log = CLogger.getCLogger(HibiscusLoader.class);
@@ -195,193 +217,107 @@ public class HibiscusLoader implements BankStatementLoaderInterface {
 		if (s_log.isLoggable(Level.INFO))
 			s_log.info("");
 
-		String statementRef = m_bsl.getLocalFileName();
-		int last = statementRef.lastIndexOf("_");
-		if (last < 0)
-			last = statementRef.lastIndexOf(File.separator);
-		if (last > 0)
-			statementRef = statementRef.substring(last+1);
-		Timestamp loadTS = new Timestamp(System.currentTimeMillis());
-		String statementName = loadTS.toString();
-		Timestamp firstDateLine = null;
+		initLoad();
+		long startNanos = System.nanoTime();
 
-		CsvPreference csvpref = CsvPreference.EXCEL_NORTH_EUROPE_PREFERENCE;
-		Charset charset = Charset.forName("UTF-8");
-		ICsvMapReader mapReader = null;
-		FileInputStream fileInputStream = null;
+		HibiscusInput input = null;
+		HibiscusCSVReader csvReader = null;
+		HibiscusParseStage parseStage = null;
 		int cnt = 1;
+		boolean loaded = false;
 		try {
+			if (m_settings.skipDuplicates)
+				// the insert checks again the ids loaded since they were read
+				m_bulkWriter = new HibiscusBulkWriter(Env.getCtx(), m_bsl.get_TrxName(), m_settings.bulkBatchSize, true);
+			else if (m_settings.bulkInsert)
+				m_bulkWriter = new HibiscusBulkWriter(Env.getCtx(), m_bsl.get_TrxName(), m_settings.bulkBatchSize);
 
-			final CellProcessor[] processors = new CellProcessor[] { new NotNull(), // Konto_AccountNo
-					new NotNull(), // Konto_RoutingNo
-					new NotNull(new ParseInt()), // Konto_Id
-					new NotNull(new ParseInt()), // Umsatz_Id
-					new Optional(), // Empfaenger_Konto
-					new Optional(), // Empfaenger_Blz
-					new Optional(), // Empfaenger_Name
-					new NotNull(), // Betrag
-					new Optional(), // Zweck
-					new Optional(), // Zweck2
-					new Optional(), // Zweck3
-					new ParseDate("dd.MM.yyyy"), // Datum
-					new ParseDate("dd.MM.yyyy"), // Valuta
-					new Optional(), // Kommentar
-					new Optional(new ParseLong()), // Checksum
-					new Optional(), // GvCode
-					new Optional(), // EndToEndId
-					new Optional(), // MandateId
-					new Optional(), // PrimaNota
-					new Optional(), // Art
-					new Optional(), // CustomerRef
-					new Optional(), // AddKey
-					new Optional(), // TxId
-					new Optional(), // PurposeCode
-					new Optional(), // Empfaenger_Name2
-					new Optional() // UmsatzTyp_Name
-			};
-
-			fileInputStream = new FileInputStream(new File(m_bsl.getLocalFileName()));
-			mapReader = new CsvMapReader(new InputStreamReader(fileInputStream, charset), csvpref);
-			final String[] header = mapReader.getHeader(true);
-			Map<String, Object> values;
-			while ((values = mapReader.read(header, processors)) != null) {
-				cnt++;
-				String v_Konto_AccountNo = (String) values.get(CSVCOLNAME_Konto_AccountNo);
-				String v_Konto_RoutingNo = (String) values.get(CSVCOLNAME_Konto_RoutingNo);
-				Integer v_Konto_Id = (Integer) values.get(CSVCOLNAME_Konto_Id);
-				Integer v_Umsatz_Id = (Integer) values.get(CSVCOLNAME_Umsatz_Id);
-				String v_Empfaenger_Konto = (String) values.get(CSVCOLNAME_Empfaenger_Konto);
-				String v_Empfaenger_Blz = (String) values.get(CSVCOLNAME_Empfaenger_Blz);
-				String v_Empfaenger_Name = (String) values.get(CSVCOLNAME_Empfaenger_Name);
-				String v_BetragString = (String) values.get(CSVCOLNAME_Betrag);
-				String v_Zweck = (String) values.get(CSVCOLNAME_Zweck);
-				String v_Zweck2 = (String) values.get(CSVCOLNAME_Zweck2);
-				String v_Zweck3 = (String) values.get(CSVCOLNAME_Zweck3);
-				Date v_Datum = (Date) values.get(CSVCOLNAME_Datum);
-				Date v_Valuta = (Date) values.get(CSVCOLNAME_Valuta);
-				String v_Kommentar = (String) values.get(CSVCOLNAME_Kommentar);
-				Long v_Checksum = (Long) values.get(CSVCOLNAME_Checksum);
-				String v_GvCode = (String) values.get(CSVCOLNAME_GvCode);
-				String v_EndToEndId = (String) values.get(CSVCOLNAME_EndToEndId);
-				String v_MandateId = (String) values.get(CSVCOLNAME_MandateId);
-				String v_PrimaNota = (String) values.get(CSVCOLNAME_PrimaNota);
-				String v_Art = (String) values.get(CSVCOLNAME_Art);
-				String v_CustomerRef = (String) values.get(CSVCOLNAME_CustomerRef);
-				String v_AddKey = (String) values.get(CSVCOLNAME_AddKey);
-				String v_TxId = (String) values.get(CSVCOLNAME_TxId);
-				String v_PurposeCode = (String) values.get(CSVCOLNAME_PurposeCode);
-				String v_Empfaenger_Name2 = (String) values.get(CSVCOLNAME_Empfaenger_Name2);
-				String v_UmsatzTyp_Name = (String) values.get(CSVCOLNAME_UmsatzTyp_Name);
-				BigDecimal v_Betrag = null;
-				// depending on Hibiscus configuration sometimes the decimal separator is sent as comma
-				v_BetragString = v_BetragString.replace(",", ".");
-				v_Betrag = new BigDecimal(v_BetragString);
-
-				m_line = new StatementLine();
-				m_line.bankAccountNo = v_Konto_AccountNo;
-				m_line.routingNo = v_Konto_RoutingNo;
-				m_line.trxID = String.valueOf(v_Umsatz_Id);
-				m_line.payeeAccountNo = v_Empfaenger_Konto;
-				m_line.checkNo = v_Empfaenger_Blz;
-				m_line.payeeName = v_Empfaenger_Name;
-				m_line.stmtAmt = v_Betrag;
-				m_line.trxAmt = v_Betrag;
-				m_line.statementLineDate = new Timestamp(v_Datum.getTime());
-				m_line.valutaDate = new Timestamp(v_Valuta.getTime());
-				m_line.trxType = String.valueOf(v_Checksum);
-				m_line.reference = v_EndToEndId;
-				m_line.statementReference = statementRef;
-				// m_line.statementDate
-				// m_line.isReversal
-				// m_line.currency
-				// m_line.chargeName
-				// m_line.chargeAmt
-				// m_line.interestAmt
-				// m_line.iban
-
-				StringBuilder mergedzweck = new StringBuilder();
-				if (v_Zweck != null)
-					mergedzweck.append(v_Zweck);
-				if (v_Zweck2 != null)
-					mergedzweck.append("\n").append(v_Zweck2);
-				if (v_Zweck3 != null)
-					mergedzweck.append("\n").append(v_Zweck3);
-				m_line.memo = mergedzweck.toString();
-
-				StringBuilder memo2 = new StringBuilder();
-				append(memo2, "PrimaNota", v_PrimaNota);
-				append(memo2, "Art", v_Art);
-				append(memo2, "CustomerRef", v_CustomerRef);
-				append(memo2, "AddKey", v_AddKey);
-				append(memo2, "TxId", v_TxId);
-				append(memo2, "PurposeCode", v_PurposeCode);
-				append(memo2, "Empfaenger_Name2", v_Empfaenger_Name2);
-				append(memo2, "UmsatzTyp_Name", v_UmsatzTyp_Name);
-
-				// create the I_BankStatement record
-				if (!m_bsl.saveLine())
-					return false;
+			if (m_settings.commitEvery > 0 && m_bsl.get_TrxName() != null) {
+				m_checkpoint = HibiscusCheckpoint.get(m_bsl.getLocalFileName());
+				if (m_checkpoint.getPart() >= 0) {
+					// the checkpoint tells exactly which rows are committed
+					m_watermarks = null;
+					if (s_log.isLoggable(Level.INFO))
+						s_log.info("Resuming after row " + m_checkpoint.getRecord() + ", " + m_checkpoint.getRows() + " rows already committed");
+				}
+			}
 
-				X_I_BankStatement ibs = m_bsl.getLastSavedLine();
-				if (firstDateLine == null)
-					firstDateLine = ibs.getStatementLineDate();
-				ibs.setMemo(memo2.toString());
-				ibs.setLineDescription(v_Kommentar);
-				ibs.setEftTrxType(v_GvCode);
-				ibs.setReferenceNo(v_MandateId);
-				ibs.setName(statementName);
-				ibs.setDescription(MSysConfig.getValue("BXS_HIBISCUS_STATEMENT_DESCRIPTION", "Uploaded via de.bxservice.hibiscus.HibiscusLoader", Env.getAD_Client_ID(Env.getCtx())));
-				ibs.setStatementDate(firstDateLine);
-				ibs.saveEx();
-
-				// Verify that bank account was found
-				if (ibs.getC_BankAccount_ID() <= 0) {
-					m_errorMessage = new StringBuffer("LoadError");
-					m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_BankNotFound", new Object[] {v_Konto_AccountNo, v_Konto_RoutingNo}));
-					return false;
+			if (m_settings.rejectInvalidRows) {
+				File rejectFile = HibiscusRejectWriter.getRejectFile(m_bsl.getLocalFileName());
+				if (m_checkpoint != null)
+					// a resumed load continues the rejected rows of the committed part
+					m_rejectWriter = new HibiscusRejectWriter(rejectFile, m_checkpoint.getRejectLength());
+				else {
+					// a reject file left by a previous load is replaced
+					if (rejectFile.exists())
+						rejectFile.delete();
+					m_rejectWriter = new HibiscusRejectWriter(rejectFile);
 				}
-				MBankAccount ba = MBankAccount.get(ibs.getC_BankAccount_ID());
-				// verify there is no record with same Umsatz_Id (Line) in I_BankStatement or C_BankStatementLine
-				if (MSysConfig.getBooleanValue("BXS_HIBISCUS_VALIDATE_DUPS_UMSATZID", true, Env.getAD_Client_ID(Env.getCtx()))) {
-					final String sqlcntibs =
-							"SELECT COUNT(*) "
-							+ "FROM I_BankStatement "
-							+ "WHERE EftTrxID=? AND C_BankAccount_ID=? AND I_BankStatement_ID!=?";
-					int cntibs = DB.getSQLValueEx(m_bsl.get_TrxName(), sqlcntibs, m_line.trxID, ba.getC_BankAccount_ID(), ibs.getI_BankStatement_ID());
-					if (cntibs > 0) {
-						m_errorMessage = new StringBuffer("LoadError");
-						m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdAlreadyInImport", new Object[] {m_line.trxID}));
-						return false;
+			}
+
+			// plain, gzip or zip with several CSV files
+			input = HibiscusInput.open(new File(m_bsl.getLocalFileName()));
+			HibiscusChecksum checksum = new HibiscusChecksum();
+			m_part = -1;
+			while (input.next()) {
+				m_part++;
+				if (m_checkpoint != null && m_checkpoint.isCommitted(m_part))
+					continue;
+				cnt = 1;
+				csvReader = new HibiscusCSVReader(input.getReader());
+				csvReader.readHeader();
+				m_rejectInput = csvReader.isRejectFile();
+				csvReader.setWatermarks(m_rejectInput ? null : m_watermarks);
+				csvReader.setLenient(m_rejectWriter != null);
+				if (m_settings.pipelined) {
+					// the rows are decoded and validated on another thread while the previous ones are written
+					parseStage = new HibiscusParseStage(csvReader, m_settings.pipelineQueueSize, m_settings.validateChecksum, m_settings.validateDupsUmsatzId);
+					parseStage.start();
+					HibiscusRow row;
+					while ((row = parseStage.take()) != null) {
+						if (!loadLine(row, checksum))
+							return failed(input);
+						parseStage.recycle(row);
+						progress(input);
 					}
-					final String sqlcntbs =
-							"SELECT Name "
-							+ "FROM C_BankStatementLine bsl "
-							+ "JOIN C_BankStatement bs ON (bsl.C_BankStatement_ID=bs.C_BankStatement_ID) "
-							+ "WHERE bsl.EftTrxID=? AND bs.C_BankAccount_ID=? AND bs.DocStatus NOT IN ('RE','VO')";
-					String bsname = DB.getSQLValueStringEx(m_bsl.get_TrxName(), sqlcntbs, m_line.trxID, ba.getC_BankAccount_ID());
-					if (bsname != null) {
-						m_errorMessage = new StringBuffer("LoadError");
-						m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdAlreadyInStatement", new Object[] {m_line.trxID, bsname}));
-						return false;
-					}
-				}
-				// validate checksum to avoid tampering of the data
-				if (MSysConfig.getBooleanValue("BXS_HIBISCUS_VALIDATE_CHECKSUM", false, Env.getAD_Client_ID(Env.getCtx()))) {
-					long calcCheckssum = calcCheckSum(v_Art, v_Konto_Id, v_Betrag.doubleValue(), v_CustomerRef,
-							v_Empfaenger_Blz, v_Empfaenger_Konto, v_Empfaenger_Name, v_PrimaNota, mergedzweck.toString(), v_Datum,
-							v_Valuta);
-					if (calcCheckssum != v_Checksum.longValue()) {
-						m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdNoMatchChecksum", new Object[] {m_line.trxID, String.valueOf(calcCheckssum), String.valueOf(v_Checksum.longValue())}));
-						if (MSysConfig.getBooleanValue("BXS_HIBISCUS_FORCE_CHECKSUM", false, Env.getAD_Client_ID(Env.getCtx()))) {
-							m_errorMessage = new StringBuffer("LoadError");
-							return false;
-						} else {
-							s_log.warning(m_errorDescription.toString());
-						}
+					parseStage.stop();
+					parseStage = null;
+				} else {
+					HibiscusRow row = new HibiscusRow();
+					while (csvReader.next(row)) {
+						if (!loadLine(row, checksum))
+							return failed(input);
+						progress(input);
 					}
 				}
+				m_skipped += csvReader.getSkippedCount();
+				m_rowsRead += csvReader.getSkippedCount();
+				csvReader = null;
+			}
+			if (m_bulkWriter != null) {
+				long writeStart = System.nanoTime();
+				m_bulkWriter.flush();
+				m_writeNanos += System.nanoTime() - writeStart;
+				m_duplicates += m_bulkWriter.getSkipped();
+				// the lines are not saved through MBankStatementLoader.saveLine, so they are not in the count of the
+				// Load Bank Statement process, they are reported in the log of the stage
+				m_bulkInserted = m_bulkWriter.getCount() - m_bulkWriter.getSkipped();
+				if (s_log.isLoggable(Level.INFO))
+					s_log.info(m_bulkInserted + " rows inserted in bulk");
 			}
+			if (m_skipped > 0 && s_log.isLoggable(Level.INFO))
+				s_log.info(m_skipped + " rows skipped, already loaded");
+			if (m_duplicates > 0 && s_log.isLoggable(Level.INFO))
+				s_log.info(m_duplicates + " duplicated rows skipped");
+			if (m_rejectWriter != null && m_rejectWriter.getCount() > 0)
+				s_log.warning(m_rejectWriter.getCount() + " rows rejected to " + m_rejectWriter.getFile().getAbsolutePath());
+			loaded = true;
 		} catch (Exception e) {
+			// rows skipped by the reader are counted in the line number
+			if (parseStage != null)
+				cnt = Math.max(cnt, parseStage.getRecordNo());
+			else if (csvReader != null)
+				cnt = Math.max(cnt, csvReader.getRecordCount());
 			m_errorMessage = new StringBuffer("LoadError");
 			m_errorDescription = new StringBuffer(Msg.getElement(Env.getCtx(), "Line")).append(" ").append(cnt).append(" -> ");
 			if (e.getLocalizedMessage() != null)
@@ -390,81 +326,614 @@ public class HibiscusLoader implements BankStatementLoaderInterface {
 				m_errorDescription.append(e.getMessage());
 			else
 				m_errorDescription.append(e.toString());
-			return false;
+			return failed(input);
 		} finally {
-			if (mapReader != null) {
+			if (parseStage != null)
+				parseStage.stop();
+			if (m_checkpoint != null)
+				m_checkpoint.release();
+			if (m_bulkWriter != null) {
+				m_bulkWriter.close();
+				m_writeSql += m_bulkWriter.getBatchCount();
+				m_bulkWriter = null;
+			}
+			// parsing and validation on one side, the inserts in I_BankStatement on the other
+			long millis = (System.nanoTime() - startNanos) / 1000000;
+			long writeMillis = m_writeNanos / 1000000;
+			HibiscusStageMetrics.record("HibiscusLoader.Read", m_rowsRead, millis - writeMillis, m_readSql);
+			HibiscusStageMetrics.record("HibiscusLoader.Write", m_rowsWritten, writeMillis, m_writeSql);
+			// the rows not loaded are shown in the log of the process
+			if (m_skipped > 0)
+				HibiscusStageMetrics.record("HibiscusLoader.SkippedAlreadyLoaded", m_skipped, 0, 0);
+			if (m_duplicates > 0)
+				HibiscusStageMetrics.record("HibiscusLoader.SkippedDuplicated", m_duplicates, 0, 0);
+			if (m_bulkInserted > 0)
+				HibiscusStageMetrics.record("HibiscusLoader.BulkInserted", m_bulkInserted, writeMillis, m_writeSql);
+			if (m_rejectWriter != null) {
 				try {
-					mapReader.close();
+					m_rejectWriter.close();
+				} catch (IOException e) {
+					s_log.log(Level.WARNING, m_rejectWriter.getFile().getAbsolutePath(), e);
+				}
+				// the load is rolled back, the rejected rows of a failed load are not useful,
+				// unless part of it is committed, then a resumed load continues the file
+				if (!loaded && m_checkpoint == null)
+					m_rejectWriter.getFile().delete();
+				m_rejectWriter = null;
+			}
+			if (input != null) {
+				try {
+					input.close();
 				} catch (IOException e) {
 					throw new AdempiereException(e);
 				}
 			}
-			if (fileInputStream != null) {
+		}
+
+		return true;
+	}
+
+	/**
+	 * Validate the whole file without writing to the database (dry run).
+	 * The rows are decoded and checked like in loadLines (bank account, Umsatz_Id already loaded or repeated,
+	 * checksum, date and amount format) but the problems are collected instead of stopping at the first one.
+	 * The database is only read: bank accounts and Umsatz_Id already loaded.
+	 * @return problems found with their line number, empty when the file can be loaded
+	 */
+	public List<String> validateLines() {
+		initLoad();
+
+		List<String> problems = new ArrayList<String>();
+		// an unknown bank account is reported once, not on every row
+		Set<AccountContext> reported = new HashSet<AccountContext>();
+		HibiscusInput input = null;
+		try {
+			input = HibiscusInput.open(new File(m_bsl.getLocalFileName()));
+			HibiscusChecksum checksum = new HibiscusChecksum();
+			while (input.next() && problems.size() < MAX_PROBLEMS) {
+				String prefix = input.isArchive() ? input.getName() + ": " : "";
+				HibiscusCSVReader csvReader = new HibiscusCSVReader(input.getReader());
 				try {
-					fileInputStream.close();
+					csvReader.readHeader();
+				} catch (AdempiereException e) {
+					problems.add(prefix + lineMessage(1, getMessage(e)));
+					continue;
+				}
+				m_rejectInput = csvReader.isRejectFile();
+				csvReader.setWatermarks(m_rejectInput ? null : m_watermarks);
+				HibiscusRow row = new HibiscusRow();
+				while (problems.size() < MAX_PROBLEMS) {
+					try {
+						if (!csvReader.next(row))
+							break;
+					} catch (AdempiereException e) {
+						// the wrong record was read completely, continue with the next one
+						problems.add(prefix + lineMessage(csvReader.getRecordCount() + 1, getMessage(e)));
+						csvReader.skipFailedRecord();
+						continue;
+					}
+					AccountContext account = getAccount(row.get(HibiscusRow.Konto_AccountNo), row.get(HibiscusRow.Konto_RoutingNo));
+					if (isLoaded(row, account))
+						continue;
+					if (account.C_BankAccount_ID <= 0 && !reported.add(account))
+						continue;
+					m_lineWarning = null;
+					if (!validateLine(row, account, checksum))
+						problems.add(prefix + lineMessage(row.recordNo, m_errorDescription.toString()));
+					else if (m_lineWarning != null)
+						problems.add(prefix + lineMessage(row.recordNo, m_lineWarning));
+				}
+				m_skipped += csvReader.getSkippedCount();
+			}
+		} catch (Exception e) {
+			problems.add(getMessage(e));
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
 				} catch (IOException e) {
 					throw new AdempiereException(e);
 				}
 			}
 		}
+		m_errorMessage = null;
+		m_errorDescription = null;
+
+		return problems;
+	}
+
+	private String lineMessage(int line, String message) {
+		return Msg.getElement(Env.getCtx(), "Line") + " " + line + " -> " + message;
+	}
+
+	private String getMessage(Exception e) {
+		if (e.getLocalizedMessage() != null)
+			return e.getLocalizedMessage();
+		if (e.getMessage() != null)
+			return e.getMessage();
+		return e.toString();
+	}
+
+	/**
+	 * Prepare the state of a new load or validation of the file
+	 */
+	private void initLoad() {
+		m_statementRef = m_bsl.getLocalFileName();
+		int last = m_statementRef.lastIndexOf("_");
+		if (last < 0)
+			last = m_statementRef.lastIndexOf(File.separator);
+		if (last > 0)
+			m_statementRef = m_statementRef.substring(last+1);
+		Timestamp loadTS = new Timestamp(System.currentTimeMillis());
+		m_statementName = loadTS.toString();
+		m_firstDateLine = null;
+		m_accounts.clear();
+		m_accountsByID.clear();
+		// the context of the process running the load, it can force a full import
+		m_settings = new HibiscusImportSettings(m_bsl.getCtx());
+		m_line = new StatementLine();
+		m_watermarks = m_settings.incremental ? new HibiscusWatermarks() : null;
+		m_skipped = 0;
+		m_duplicates = 0;
+		m_rowsRead = 0;
+		m_rowsWritten = 0;
+		m_writeNanos = 0;
+		m_readSql = 0;
+		m_writeSql = 0;
+		m_bulkInserted = 0;
+		m_checkpoint = null;
+		m_part = 0;
+		m_rejectInput = false;
+		m_uncommitted = 0;
+		m_progress = HibiscusProgress.get();
+	}
+
+	/**
+	 * Report the rows read and the position in the file, checked every 1024 rows
+	 * @param input
+	 */
+	private void progress(HibiscusInput input) {
+		if (m_progress != null && (m_rowsRead & 0x3FF) == 0)
+			m_progress.rows(m_rowsRead, input.getPosition(), input.getLength());
+	}
+
+	/**
+	 * Add the name of the CSV file to the error when loading an archive
+	 * @param input
+	 * @return false
+	 */
+	private boolean failed(HibiscusInput input) {
+		if (input != null && input.isArchive() && m_errorDescription != null)
+			m_errorDescription.insert(0, input.getName() + ": ");
+		return false;
+	}
+
+	/**
+	 * Validate and write one line of the file
+	 * @param row CSV row
+	 * @param checksum checksum verifier of the run
+	 * @return false if the line cannot be loaded, the error is set
+	 */
+	private boolean loadLine(HibiscusRow row, HibiscusChecksum checksum) throws IOException {
+		m_rowsRead++;
+		if (m_checkpoint != null && m_checkpoint.isCommitted(m_part, row.recordNo)) {
+			if (row.recordNo == m_checkpoint.getRecord() && row.error == null && row.umsatzId != m_checkpoint.getUmsatzId())
+				throw new AdempiereException("The row " + row.recordNo + " doesn't match the checkpoint, Umsatz_Id " + row.umsatzId + " instead of " + m_checkpoint.getUmsatzId());
+			m_skipped++;
+			return true;
+		}
+		if (row.error != null)
+			return reject(row, row.error);
+		// the bank account is resolved and the line validated before anything is written
+		AccountContext account = getAccount(row.get(HibiscusRow.Konto_AccountNo), row.get(HibiscusRow.Konto_RoutingNo));
+		if (isLoaded(row, account))
+			return true;
+		if (isCommittedBefore(row, account)) {
+			m_skipped++;
+			return true;
+		}
+		if (m_settings.skipDuplicates && isDuplicate(row, account)) {
+			m_duplicates++;
+			return true;
+		}
+		if (!validateLine(row, account, checksum)) {
+			if (m_rejectWriter != null)
+				return reject(row, m_errorDescription.toString());
+			return false;
+		}
+		long writeStart = System.nanoTime();
+		boolean saved = saveLine(row, account);
+		if (saved) {
+			m_rowsWritten++;
+			if (m_checkpoint != null && ++m_uncommitted >= m_settings.commitEvery)
+				commit(row);
+		}
+		m_writeNanos += System.nanoTime() - writeStart;
+		return saved;
+	}
+
+	/**
+	 * Commit the rows written so far and record the row as the checkpoint
+	 * @param row last row written
+	 * @throws IOException
+	 */
+	private void commit(HibiscusRow row) throws IOException {
+		if (m_bulkWriter != null)
+			m_bulkWriter.flush();
+		try {
+			Trx.get(m_bsl.get_TrxName(), false).commit(true);
+		} catch (SQLException e) {
+			throw new DBException(e);
+		}
+		if (m_settings.validateDupsUmsatzId || m_settings.skipDuplicates)
+			relockAccounts();
+		long rejectLength = m_rejectWriter != null ? m_rejectWriter.flush() : 0;
+		m_checkpoint.saveRow(m_part, row.recordNo, row.umsatzId, m_checkpoint.getRows() + m_uncommitted, rejectLength);
+		m_uncommitted = 0;
+	}
+
+	/**
+	 * Write the row to the reject file and continue with the load
+	 * @param row CSV row
+	 * @param error problem of the row
+	 * @return true
+	 * @throws IOException
+	 */
+	private boolean reject(HibiscusRow row, String error) throws IOException {
+		m_rejectWriter.write(row, error);
+		m_errorMessage = null;
+		m_errorDescription = null;
+		return true;
+	}
+
+	/**
+	 * Check the row against the watermark of its bank account
+	 * @param row CSV row
+	 * @param account bank account of the row
+	 * @return true when the row was already loaded and must be skipped
+	 */
+	private boolean isLoaded(HibiscusRow row, AccountContext account) {
+		if (m_watermarks != null && !m_rejectInput && account.C_BankAccount_ID > 0) {
+			// the reader skips the next rows of the account, the first ones are checked here
+			m_watermarks.register(row.kontoId, account.knownTrxIDs.maxTrxID, account.knownTrxIDs.maxDate,
+					account.knownTrxIDs.inImport, account.knownTrxIDs.inStatement);
+			if (m_watermarks.isImported(row.kontoId, row.umsatzId, row.datum)) {
+				m_skipped++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the row was committed by the previous run of a resumed load, the rows are committed
+	 * before the checkpoint is written, so the ones after the last checkpoint can be in the database already
+	 * @param row CSV row
+	 * @param account bank account of the row
+	 * @return true when the row must be skipped
+	 */
+	private boolean isCommittedBefore(HibiscusRow row, AccountContext account) {
+		if (m_checkpoint == null || m_checkpoint.getPart() < 0 || account.C_BankAccount_ID <= 0)
+			return false;
+		return account.knownTrxIDs.inImport.contains(row.umsatzId);
+	}
+
+	/**
+	 * Check if the Umsatz_Id is already loaded when the duplicates are skipped.
+	 * The bank account is locked when it is resolved and after each commit, so the imports of the same
+	 * account are serialized and the ids read then are all the ids loaded, see {@link #lockAccount(AccountContext)}
+	 * @param row CSV row
+	 * @param account bank account of the row
+	 * @return true when the row must be skipped
+	 */
+	private boolean isDuplicate(HibiscusRow row, AccountContext account) {
+		if (account.C_BankAccount_ID <= 0)
+			return false;
+		if (row.duplicateInFile || account.knownTrxIDs.inStatement.contains(row.umsatzId))
+			return true;
+		return !account.knownTrxIDs.add(row.umsatzId);
+	}
+
+	/**
+	 * Validate the line: bank account found, Umsatz_Id not loaded before and checksum
+	 * @param row CSV row
+	 * @param account bank account of the row
+	 * @param checksum checksum verifier of the run
+	 * @return false if the line cannot be loaded, the error is set
+	 */
+	private boolean validateLine(HibiscusRow row, AccountContext account, HibiscusChecksum checksum) {
+		String trxID = String.valueOf(row.umsatzId);
+		// Verify that bank account was found
+		if (account.C_BankAccount_ID <= 0) {
+			m_errorMessage = new StringBuffer("LoadError");
+			m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_BankNotFound", new Object[] {row.get(HibiscusRow.Konto_AccountNo), row.get(HibiscusRow.Konto_RoutingNo)}));
+			return false;
+		}
+		// verify there is no record with same Umsatz_Id (Line) in I_BankStatement or C_BankStatementLine
+		if (m_settings.validateDupsUmsatzId && !m_settings.skipDuplicates) {
+			// registering the id also catches duplicates within the same file
+			if (!account.knownTrxIDs.add(row.umsatzId) || row.duplicateInFile) {
+				m_errorMessage = new StringBuffer("LoadError");
+				m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdAlreadyInImport", new Object[] {trxID}));
+				return false;
+			}
+			if (account.knownTrxIDs.inStatement.contains(row.umsatzId)) {
+				final String sqlbsname =
+						"SELECT Name "
+						+ "FROM C_BankStatementLine bsl "
+						+ "JOIN C_BankStatement bs ON (bsl.C_BankStatement_ID=bs.C_BankStatement_ID) "
+						+ "WHERE bsl.EftTrxID=? AND bs.C_BankAccount_ID=? AND bs.DocStatus NOT IN ('RE','VO')";
+				String bsname = DB.getSQLValueStringEx(m_bsl.get_TrxName(), sqlbsname, trxID, account.C_BankAccount_ID);
+				m_readSql++;
+				m_errorMessage = new StringBuffer("LoadError");
+				m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdAlreadyInStatement", new Object[] {trxID, bsname}));
+				return false;
+			}
+		}
+		// validate checksum to avoid tampering of the data
+		if (m_settings.validateChecksum) {
+			if (row.checksumOk == null) {
+				row.checksumOk = checksum.verify(row);
+				row.calculatedChecksum = checksum.getChecksum();
+			}
+			if (!row.checksumOk.booleanValue()) {
+				m_errorDescription = new StringBuffer(Msg.getMsg(Env.getCtx(), "BXS_UmsatzIdNoMatchChecksum", new Object[] {trxID, String.valueOf(row.calculatedChecksum), String.valueOf(row.checksum)}));
+				if (m_settings.forceChecksum) {
+					m_errorMessage = new StringBuffer("LoadError");
+					return false;
+				} else {
+					m_lineWarning = m_errorDescription.toString();
+					s_log.warning(m_lineWarning);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Create the I_BankStatement record for the row
+	 * @param row CSV row
+	 * @param account bank account of the row
+	 * @return false if MBankStatementLoader could not save the line
+	 */
+	private boolean saveLine(HibiscusRow row, AccountContext account) {
+		m_line.bankAccountNo = row.get(HibiscusRow.Konto_AccountNo);
+		m_line.routingNo = row.get(HibiscusRow.Konto_RoutingNo);
+		m_line.trxID = String.valueOf(row.umsatzId);
+		m_line.payeeAccountNo = row.get(HibiscusRow.Empfaenger_Konto);
+		m_line.checkNo = row.get(HibiscusRow.Empfaenger_Blz);
+		m_line.payeeName = row.get(HibiscusRow.Empfaenger_Name);
+		m_line.stmtAmt = row.betrag;
+		m_line.trxAmt = row.betrag;
+		m_line.statementLineDate = row.datum;
+		m_line.valutaDate = row.valuta;
+		m_line.trxType = String.valueOf(row.checksum);
+		m_line.reference = row.get(HibiscusRow.EndToEndId);
+		m_line.statementReference = m_statementRef;
+		// m_line.statementDate
+		// m_line.isReversal
+		// m_line.currency
+		// m_line.chargeName
+		// m_line.chargeAmt
+		// m_line.interestAmt
+		// m_line.iban
+
+		StringBuilder mergedzweck = new StringBuilder();
+		if (row.get(HibiscusRow.Zweck) != null)
+			mergedzweck.append(row.get(HibiscusRow.Zweck));
+		if (row.get(HibiscusRow.Zweck2) != null)
+			mergedzweck.append("\n").append(row.get(HibiscusRow.Zweck2));
+		if (row.get(HibiscusRow.Zweck3) != null)
+			mergedzweck.append("\n").append(row.get(HibiscusRow.Zweck3));
+		m_line.memo = mergedzweck.toString();
+
+		StringBuilder memo2 = new StringBuilder();
+		append(memo2, "PrimaNota", row.get(HibiscusRow.PrimaNota));
+		append(memo2, "Art", row.get(HibiscusRow.Art));
+		append(memo2, "CustomerRef", row.get(HibiscusRow.CustomerRef));
+		append(memo2, "AddKey", row.get(HibiscusRow.AddKey));
+		append(memo2, "TxId", row.get(HibiscusRow.TxId));
+		append(memo2, "PurposeCode", row.get(HibiscusRow.PurposeCode));
+		append(memo2, "Empfaenger_Name2", row.get(HibiscusRow.Empfaenger_Name2));
+		append(memo2, "UmsatzTyp_Name", row.get(HibiscusRow.UmsatzTyp_Name));
 
+		// create the I_BankStatement record
+		X_I_BankStatement ibs;
+		if (m_bulkWriter != null) {
+			// complete record written in one pass, sent to the database in batches, the id is the only statement per row
+			ibs = m_bulkWriter.getLine();
+			fillLine(ibs);
+			m_writeSql++;
+		} else {
+			// insert by MBankStatementLoader and update of the Hibiscus columns
+			m_writeSql += 2;
+			if (!m_bsl.saveLine())
+				return false;
+			ibs = m_bsl.getLastSavedLine();
+		}
+		if (ibs.getC_BankAccount_ID() <= 0)
+			ibs.setC_BankAccount_ID(account.C_BankAccount_ID);
+		if (m_firstDateLine == null)
+			m_firstDateLine = ibs.getStatementLineDate();
+		ibs.setMemo(memo2.toString());
+		ibs.setLineDescription(row.get(HibiscusRow.Kommentar));
+		ibs.setEftTrxType(row.get(HibiscusRow.GvCode));
+		ibs.setReferenceNo(row.get(HibiscusRow.MandateId));
+		ibs.setName(m_statementName);
+		ibs.setDescription(m_settings.statementDescription);
+		ibs.setStatementDate(m_firstDateLine);
+		if (m_bulkWriter != null)
+			m_bulkWriter.add();
+		else
+			ibs.saveEx();
 		return true;
 	}
 
 	/**
-	 * Calculate the checksum of the record
-	 * Based on Hibiscus method de.willuhn.jameica.hbci.server.UmsatzImpl.getChecksum()
-	 * @param art
-	 * @param kontoid
-	 * @param betrag
-	 * @param customerref
-	 * @param gegenkontoBLZ
-	 * @param gegenkontoNummer
-	 * @param gegenkontoName
-	 * @param primanota
-	 * @param mergedzweck
-	 * @param datum
-	 * @param valuta
-	 * @return
+	 * Fill the import line with the same values MBankStatementLoader.saveLine writes from the loader,
+	 * used when the lines are written in bulk
+	 * @param imp import line
+	 */
+	private void fillLine(X_I_BankStatement imp) {
+		imp.setC_BankStatementLoader_ID(m_bsl.getC_BankStatementLoader_ID());
+		imp.setC_BankAccount_ID(0);
+		imp.setBankAccountNo(m_line.bankAccountNo);
+		imp.setRoutingNo(m_line.routingNo);
+		imp.setIBAN(m_line.iban);
+		imp.setEftStatementReference(m_line.statementReference);
+		imp.setEftStatementDate(m_line.statementDate);
+		imp.setStatementDate(m_line.statementDate);
+		imp.setEftTrxID(m_line.trxID);
+		imp.setEftTrxType(m_line.trxType);
+		imp.setEftCheckNo(m_line.checkNo);
+		imp.setReferenceNo(m_line.reference);
+		imp.setEftReference(m_line.reference);
+		imp.setStatementLineDate(m_line.statementLineDate);
+		imp.setEftStatementLineDate(m_line.statementLineDate);
+		imp.setValutaDate(m_line.valutaDate);
+		imp.setEftValutaDate(m_line.valutaDate);
+		imp.setIsReversal(m_line.isReversal);
+		imp.setEftCurrency(m_line.currency);
+		imp.setISO_Code(m_line.currency);
+		imp.setChargeName(m_line.chargeName);
+		imp.setChargeAmt(m_line.chargeAmt);
+		imp.setInterestAmt(m_line.interestAmt);
+		imp.setEftAmt(m_line.trxAmt);
+		imp.setTrxAmt(m_line.trxAmt);
+		imp.setStmtAmt(m_line.stmtAmt);
+		imp.setEftMemo(m_line.memo);
+		imp.setEftPayee(m_line.payeeName);
+		imp.setEftPayeeAccount(m_line.payeeAccountNo);
+		imp.setI_IsImported(false);
+		imp.setProcessed(false);
+	}
+
+	/**
+	 * Get the bank account for the account number and routing number (or BIC) of the CSV file,
+	 * resolved once per run together with the Umsatz_Id already loaded for it
+	 * @param accountNo Konto_AccountNo
+	 * @param routingNo Konto_RoutingNo
+	 * @return bank account context, with C_BankAccount_ID 0 when not found
 	 */
-	private long calcCheckSum(String art, int kontoid, double betrag, String customerref,
-			String gegenkontoBLZ, String gegenkontoNummer, String gegenkontoName, String primanota,
-			String mergedzweckNL, Date datum, Date valuta) {
-		// TODO: This method still doesn't return the exact same value as Hibiscus, it requires more debugging
-		DateFormat HBCI_DATEFORMAT = new SimpleDateFormat("dd.MM.yyyy");
-		String sd = HBCI_DATEFORMAT.format(datum);
-		String sv = HBCI_DATEFORMAT.format(valuta);
-		// based on Hibiscus method de.willuhn.jameica.hbci.server.UmsatzImpl.getAttribute("mergedzweck")
-		String mergedzweck = "";
-		List<String> mz = new ArrayList<String>();
-		if (mergedzweckNL != null) {
-			for (String z3 : mergedzweckNL.split("\n"))
-				mz.add(z3);
-			for (String s : mz) {
-				if (mergedzweck.length() > 0)
-					mergedzweck += " ";
-				if (s != null)
-					mergedzweck += s;
+	private AccountContext getAccount(String accountNo, String routingNo) {
+		String key = accountNo + "|" + routingNo;
+		AccountContext account = m_accounts.get(key);
+		if (account == null) {
+			int C_BankAccount_ID = findBankAccount(m_settings.AD_Client_ID, accountNo, routingNo, m_bsl.get_TrxName());
+			m_readSql++;
+			if (C_BankAccount_ID > 0)
+				account = m_accountsByID.get(C_BankAccount_ID);
+			if (account == null) {
+				account = new AccountContext(C_BankAccount_ID);
+				if (account.C_BankAccount_ID > 0 && (m_settings.validateDupsUmsatzId || m_settings.incremental || m_settings.skipDuplicates))
+					loadKnownTrxIDs(account);
+				m_accountsByID.put(account.C_BankAccount_ID, account);
 			}
-			mergedzweck = mergedzweckNL.replace("\n", " ");
+			m_accounts.put(key, account);
+		}
+		return account;
+	}
+
+	/**
+	 * Find the own bank account for the account number and routing number (or BIC) of the CSV file
+	 * @param AD_Client_ID client
+	 * @param accountNo Konto_AccountNo, account number or IBAN
+	 * @param routingNo Konto_RoutingNo, routing number or BIC
+	 * @param trxName transaction
+	 * @return C_BankAccount_ID or 0 when not found
+	 */
+	static int findBankAccount(int AD_Client_ID, String accountNo, String routingNo, String trxName) {
+		final String sql =
+				"SELECT MIN(ba.C_BankAccount_ID) "
+				+ "FROM C_BankAccount ba "
+				+ "JOIN C_Bank b ON (ba.C_Bank_ID=b.C_Bank_ID) "
+				+ "WHERE ba.AD_Client_ID=? AND ba.IsActive='Y' AND b.IsOwnBank='Y' "
+				+ "AND (ba.AccountNo=? OR ba.IBAN=?) AND (b.RoutingNo=? OR b.SwiftCode=?)";
+		int C_BankAccount_ID = DB.getSQLValueEx(trxName, sql, AD_Client_ID, accountNo, accountNo, routingNo, routingNo);
+		return C_BankAccount_ID > 0 ? C_BankAccount_ID : 0;
+	}
+
+	/** Umsatz_Id loaded for a bank account in I_BankStatement */
+	private static final String SQL_IMPORT_IDS =
+			"SELECT EftTrxID, StatementLineDate "
+			+ "FROM I_BankStatement "
+			+ "WHERE C_BankAccount_ID=? AND EftTrxID IS NOT NULL";
+	/** Umsatz_Id loaded for a bank account in the statements not reversed or voided */
+	private static final String SQL_STATEMENT_IDS =
+			"SELECT bsl.EftTrxID, bsl.StatementLineDate "
+			+ "FROM C_BankStatementLine bsl "
+			+ "JOIN C_BankStatement bs ON (bsl.C_BankStatement_ID=bs.C_BankStatement_ID) "
+			+ "WHERE bs.C_BankAccount_ID=? AND bs.DocStatus NOT IN ('RE','VO') AND bsl.EftTrxID IS NOT NULL";
+
+	/**
+	 * Read the Umsatz_Id already loaded for the bank account in I_BankStatement and C_BankStatementLine
+	 * @param account bank account
+	 */
+	private void loadKnownTrxIDs(AccountContext account) {
+		lockAccount(account);
+		loadTrxIDs(account.knownTrxIDs, account.knownTrxIDs.inImport, SQL_IMPORT_IDS, account.C_BankAccount_ID);
+		loadTrxIDs(account.knownTrxIDs, account.knownTrxIDs.inStatement, SQL_STATEMENT_IDS, account.C_BankAccount_ID);
+	}
+
+	/**
+	 * Lock the bank account until the transaction ends, the imports of the same account are serialized,
+	 * so the Umsatz_Id read and the rows inserted by this load cannot be raced by another import
+	 * @param account bank account
+	 */
+	private void lockAccount(AccountContext account) {
+		if (m_bsl.get_TrxName() == null)
+			return;
+		DB.getSQLValueEx(m_bsl.get_TrxName(), "SELECT C_BankAccount_ID FROM C_BankAccount WHERE C_BankAccount_ID=? FOR UPDATE", account.C_BankAccount_ID);
+		m_readSql++;
+	}
+
+	/**
+	 * Lock the bank accounts again after a commit released them, and register as loaded by the file
+	 * the Umsatz_Id committed by other imports of the accounts while they were unlocked
+	 */
+	private void relockAccounts() {
+		for (AccountContext account : m_accountsByID.values()) {
+			if (account.C_BankAccount_ID <= 0)
+				continue;
+			lockAccount(account);
+			// the ids read when the account was resolved are shared with the watermark and not changed
+			loadTrxIDs(account.knownTrxIDs, account.knownTrxIDs.inFile, SQL_IMPORT_IDS, account.C_BankAccount_ID);
+			loadTrxIDs(account.knownTrxIDs, account.knownTrxIDs.inFile, SQL_STATEMENT_IDS, account.C_BankAccount_ID);
+		}
+	}
+
+	private void loadTrxIDs(KnownTrxIDs known, IntHashSet set, String sql, Object... params) {
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, m_bsl.get_TrxName());
+			pstmt.setFetchSize(1000);
+			DB.setParameters(pstmt, params);
+			rs = pstmt.executeQuery();
+			m_readSql++;
+			while (rs.next()) {
+				String trxID = rs.getString(1);
+				// other loaders can write non numeric ids, those can never collide with an Umsatz_Id
+				try {
+					int id = Integer.parseInt(trxID);
+					if (trxID.equals(String.valueOf(id))) {
+						set.add(id);
+						// watermark
+						if (id > known.maxTrxID)
+							known.maxTrxID = id;
+						Timestamp date = rs.getTimestamp(2);
+						if (date != null && (known.maxDate == null || date.after(known.maxDate)))
+							known.maxDate = date;
+					}
+				} catch (NumberFormatException e) {}
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, sql);
+		} finally {
+			DB.close(rs, pstmt);
+			rs = null;
+			pstmt = null;
 		}
-		if (art == null)
-			art = "";
-		String s = (""+art.toUpperCase() +
-				kontoid + // wenigstens die ID vom Konto muss mit rein. Andernfalls haben zwei gleich aussehende Umsaetze auf verschiedenen Konten die gleiche Checksumme
-				betrag +
-				customerref +
-				gegenkontoBLZ +
-				gegenkontoNummer +
-				(""+gegenkontoName).toUpperCase() +
-				primanota +
-				"" +   // <- saldo not included
-				mergedzweck.toUpperCase() +
-				sd +
-				sv);
-		CRC32 crc = new CRC32();
-		crc.update(s.getBytes());
-		return crc.getValue();
 	}
 
 	private void append(StringBuilder sb, String name, String var) {
@@ -598,6 +1067,36 @@ public class HibiscusLoader implements BankStatementLoaderInterface {
 		return m_line.chargeAmt;
 	}
 
+	static class KnownTrxIDs {
+		/** Umsatz_Id in I_BankStatement and in the statements when the account was resolved, not changed after,
+		 * so they are shared with the watermark read by the parse thread */
+		protected final IntHashSet inImport = new IntHashSet(1024);
+		protected final IntHashSet inStatement = new IntHashSet(1024);
+		/** Umsatz_Id of the file registered by this run */
+		protected final IntHashSet inFile = new IntHashSet(1024);
+		/** Highest Umsatz_Id and latest line date loaded */
+		protected int maxTrxID = 0;
+		protected Timestamp maxDate = null;
+
+		/**
+		 * Register an Umsatz_Id of the file
+		 * @param umsatzId
+		 * @return false when it is in I_BankStatement or was already registered by the file
+		 */
+		boolean add(int umsatzId) {
+			return !inImport.contains(umsatzId) && inFile.add(umsatzId);
+		}
+	}
+
+	static class AccountContext {
+		protected final int C_BankAccount_ID;
+		protected final KnownTrxIDs knownTrxIDs = new KnownTrxIDs();
+
+		AccountContext(int C_BankAccount_ID) {
+			this.C_BankAccount_ID = C_BankAccount_ID;
+		}
+	}
+
 	static class StatementLine {
 		protected String routingNo = null;
 		protected String bankAccountNo = null;
@@ -26,21 +26,32 @@
 package de.bxservice.hibiscus;
 
 import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.adempiere.exceptions.AdempiereException;
+import org.adempiere.exceptions.DBException;
 import org.compiere.impexp.BankStatementMatchInfo;
 import org.compiere.impexp.BankStatementMatcherInterface;
 import org.compiere.model.MBankStatementLine;
-import org.compiere.model.MInvoice;
 import org.compiere.model.MSysConfig;
-import org.compiere.model.Query;
 import org.compiere.model.X_I_BankStatement;
+import org.compiere.util.CCache;
 import org.compiere.util.CLogger;
+import org.compiere.util.DB;
 import org.compiere.util.DisplayType;
 import org.compiere.util.Env;
 import org.compiere.util.Msg;
@@ -48,6 +59,9 @@ import org.compiere.util.Msg;
 /**
  * This is a basic bank statement matcher that searches for invoice number in the EftMemo field
  * it verifies if the amount is less than the pending from the invoice
+ * the invoice numbers are found with the patterns of BXS_SALES_INVOICE_MATCH_REGEX, or by scanning the memo
+ * for the numbers of all the open invoices when BXS_SALES_INVOICE_MATCH_SCAN is Y, the numbers with only digits
+ * are scanned when they have at least BXS_SALES_INVOICE_MATCH_SCAN_MIN_DIGITS digits (default 6)
  * 
  * @author Carlos Ruiz - globalqss - BX Service
  */
@@ -56,6 +70,17 @@ public class HibiscusMatcherCustomerInvoiceInMemo implements BankStatementMatche
 	/**	Logger							*/
 	protected CLogger			log = CLogger.getCLogger (getClass());
 
+	/** Compiled patterns of BXS_SALES_INVOICE_MATCH_REGEX by client, reset when a SysConfig is changed */
+	private static final CCache<Integer, Pattern[]> s_patterns = new CCache<Integer, Pattern[]>(MSysConfig.Table_Name, "BXS_SALES_INVOICE_MATCH_REGEX", 10);
+
+	/** Open sales invoices with the open amount and the discount at a date */
+	private static final String SQL_OPEN_INVOICES =
+			"SELECT i.C_Invoice_ID, i.DocumentNo, i.C_BPartner_ID, invoiceOpen(i.C_Invoice_ID,0), invoiceDiscount(i.C_Invoice_ID,?,0) "
+			+ HibiscusOpenInvoiceIndex.SQL_FROM_OPEN_INVOICES;
+
+	/** Open invoices of the match run, the matcher is created for each statement */
+	private volatile HibiscusOpenInvoiceIndex m_index = null;
+
 	/**
 	 * 	Match Bank Statement Line
 	 *	@param bsl bank statement line
@@ -72,48 +97,266 @@ public class HibiscusMatcherCustomerInvoiceInMemo implements BankStatementMatche
 	private void matchInvoice(BankStatementMatchInfo bsi, MBankStatementLine bsl) {
 
 		// match customer invoices
-		List<String> potentialInvoices = searchInvoiceIn(bsl.getEftMemo() + " " + bsl.getEftReference());
-		List<MInvoice> invoices = new ArrayList<MInvoice>();
-		for (String potentialInvoice : potentialInvoices) {
-			MInvoice invoice = new Query(bsl.getCtx(), MInvoice.Table_Name, "DocumentNo=? AND IsSOTrx='Y' AND DocStatus IN ('CO','CL','WP')", bsl.get_TrxName())
-					.setOnlyActiveRecords(true)
-					.setClient_ID()
-					.setParameters(potentialInvoice)
-					.first();
-			if (invoice != null && invoice.getOpenAmt().signum() > 0)
-				invoices.add(invoice);
+		String memo = bsl.getEftMemo() + " " + bsl.getEftReference();
+		Set<String> potentialInvoices;
+		if (isScanOpenInvoices(bsl.getAD_Client_ID())) {
+			HibiscusOpenInvoiceIndex index = getIndex(bsl, true);
+			if (index == null)
+				throw new AdempiereException("Too many open invoices to scan the memo, configure the SysConfig BXS_SALES_INVOICE_MATCH_REGEX or increase BXS_HIBISCUS_MATCH_INDEX_MAX_INVOICES");
+			int minDigits = MSysConfig.getIntValue("BXS_SALES_INVOICE_MATCH_SCAN_MIN_DIGITS", 6, bsl.getAD_Client_ID());
+			potentialInvoices = new LinkedHashSet<String>(index.getScanner(minDigits).scan(memo));
+		} else {
+			potentialInvoices = searchInvoiceIn(memo);
 		}
+		List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices = findOpenInvoices(bsl, potentialInvoices);
 		if (invoices.size() > 0) {
 			String msg = null;
-			MInvoice firstInvoice = invoices.get(0);
-			bsi.setC_BPartner_ID(firstInvoice.getC_BPartner_ID());
+			HibiscusOpenInvoiceIndex.OpenInvoice firstInvoice = invoices.get(0);
+			bsi.setC_BPartner_ID(firstInvoice.C_BPartner_ID);
+			DecimalFormat df = DisplayType.getNumberFormat(DisplayType.Amount);
 			if (invoices.size() == 1) {
 				// found one invoice
-	            BigDecimal discount = firstInvoice.getDiscountAmt(bsl.getValutaDate());
-	            BigDecimal openAmt = firstInvoice.getOpenAmt().subtract(discount);
+				BigDecimal openAmt = firstInvoice.openAmt.subtract(getDiscountAmt(bsl, firstInvoice));
 				if (bsl.getTrxAmt().compareTo(openAmt) == 0) {
-					bsi.setC_Invoice_ID(firstInvoice.getC_Invoice_ID());
+					bsi.setC_Invoice_ID(firstInvoice.C_Invoice_ID);
 					msg = Msg.getMsg(bsl.getCtx(), "BXS_ExactMatch");
 				} else {
-					DecimalFormat df = DisplayType.getNumberFormat(DisplayType.Amount);
 					String amount = df.format(openAmt);
-					msg = Msg.getMsg(bsl.getCtx(), "BXS_MatchInvoiceNotAmount", new Object[] {firstInvoice.getDocumentNo(), amount});
+					msg = Msg.getMsg(bsl.getCtx(), "BXS_MatchInvoiceNotAmount", new Object[] {firstInvoice.documentNo, amount});
 				}
 			} else {
 				// multiple invoices, a payment with multiple allocations must be created
-				StringBuilder invoicesStr = new StringBuilder();
-				for (MInvoice invoice : invoices) {
-					if (invoicesStr.length() > 0)
-						invoicesStr.append(", ");
-					invoicesStr.append(invoice.getDocumentNo());
+				msg = Msg.getMsg(bsl.getCtx(), "BXS_MultiInvoiceMatch", new Object[] {getDocumentNos(invoices)});
+			}
+
+			if (bsi.getC_Invoice_ID() <= 0) {
+				// the amount doesn't match the invoices found, look for the combination of invoices paid
+				List<HibiscusAllocationSolver.Allocation> allocation = allocate(bsl, invoices);
+				if (allocation != null && allocation.isEmpty()) {
+					// several combinations pay the amount, the user chooses the invoices
+					msg = Msg.getMsg(bsl.getCtx(), "BXS_MultiInvoiceMatch", new Object[] {getDocumentNos(invoices)});
+				} else if (allocation != null && allocation.size() == 1) {
+					bsi.setC_BPartner_ID(allocation.get(0).invoice.C_BPartner_ID);
+					bsi.setC_Invoice_ID(allocation.get(0).invoice.C_Invoice_ID);
+					msg = Msg.getMsg(bsl.getCtx(), "BXS_ExactMatch");
+				} else if (allocation != null) {
+					StringBuilder invoicesStr = new StringBuilder();
+					for (HibiscusAllocationSolver.Allocation allocated : allocation) {
+						if (invoicesStr.length() > 0)
+							invoicesStr.append(", ");
+						invoicesStr.append(allocated.invoice.documentNo).append(" (").append(df.format(allocated.amount)).append(")");
+					}
+					msg = Msg.getMsg(bsl.getCtx(), "BXS_MultiInvoiceExactMatch", new Object[] {invoicesStr.toString()});
 				}
-				msg = Msg.getMsg(bsl.getCtx(), "BXS_MultiInvoiceMatch", new Object[] {invoicesStr.toString()});
 			}
 			addDescription(bsl, msg);
 		}
 
 	}
 
+	/**
+	 * Find the combination of open invoices paid by the line, first among the invoices found in the memo
+	 * and then, when they all belong to the same business partner, adding its other open invoices, the combination
+	 * must include at least one of the invoices found.
+	 * SysConfig BXS_HIBISCUS_ALLOCATION_MAX_INVOICES: max invoices combined (default 20, 0 to disable the search)
+	 * SysConfig BXS_HIBISCUS_ALLOCATION_TIME_MS: time budget of each search (default 200)
+	 * @param bsl bank statement line
+	 * @param invoices invoices found in the memo
+	 * @return invoices paid in memo order, then the other ones by invoice date, null when not found,
+	 * empty when several combinations pay the amount
+	 */
+	private List<HibiscusAllocationSolver.Allocation> allocate(MBankStatementLine bsl, List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices) {
+		int maxInvoices = MSysConfig.getIntValue("BXS_HIBISCUS_ALLOCATION_MAX_INVOICES", 20, bsl.getAD_Client_ID());
+		if (maxInvoices <= 0)
+			return null;
+		int timeMillis = MSysConfig.getIntValue("BXS_HIBISCUS_ALLOCATION_TIME_MS", 200, bsl.getAD_Client_ID());
+
+		List<HibiscusOpenInvoiceIndex.OpenInvoice> pool = new ArrayList<HibiscusOpenInvoiceIndex.OpenInvoice>();
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : invoices) {
+			if (pool.size() == maxInvoices)
+				break;
+			getDiscountAmt(bsl, invoice);
+			pool.add(invoice);
+		}
+		int anchors = pool.size();
+		if (anchors > 1) {
+			List<HibiscusAllocationSolver.Allocation> allocation = HibiscusAllocationSolver.solve(bsl.getTrxAmt(), pool, anchors, timeMillis);
+			// with several combinations of the memo invoices, more invoices would not tell them apart
+			if (allocation != null)
+				return allocation;
+		}
+
+		// the customer can pay invoices not written in the memo, not known when the memo has invoices of several partners
+		int C_BPartner_ID = invoices.get(0).C_BPartner_ID;
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : invoices) {
+			if (invoice.C_BPartner_ID != C_BPartner_ID)
+				return null;
+		}
+		Set<Integer> ids = new HashSet<Integer>();
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : pool)
+			ids.add(invoice.C_Invoice_ID);
+		String where = "AND i.C_BPartner_ID=? ORDER BY i.DateInvoiced, i.C_Invoice_ID";
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : queryOpenInvoices(bsl, where, new Object[] {C_BPartner_ID}, maxInvoices + anchors)) {
+			if (pool.size() == maxInvoices)
+				break;
+			if (ids.add(invoice.C_Invoice_ID))
+				pool.add(invoice);
+		}
+		if (pool.size() == anchors)
+			return null;
+		return HibiscusAllocationSolver.solve(bsl.getTrxAmt(), pool, anchors, timeMillis);
+	}
+
+	/**
+	 * @param invoices
+	 * @return document numbers of the invoices separated by comma
+	 */
+	private String getDocumentNos(List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices) {
+		StringBuilder invoicesStr = new StringBuilder();
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : invoices) {
+			if (invoicesStr.length() > 0)
+				invoicesStr.append(", ");
+			invoicesStr.append(invoice.documentNo);
+		}
+		return invoicesStr.toString();
+	}
+
+	/**
+	 * @param bsl bank statement line, its valuta date is the date of the discount
+	 * @param invoice
+	 * @return discount of the invoice, calculated when it comes from the index
+	 */
+	private BigDecimal getDiscountAmt(MBankStatementLine bsl, HibiscusOpenInvoiceIndex.OpenInvoice invoice) {
+		if (invoice.discountAmt == null) {
+			invoice.discountAmt = DB.getSQLValueBDEx(bsl.get_TrxName(), "SELECT invoiceDiscount(?,?,0) FROM DUAL", invoice.C_Invoice_ID, bsl.getValutaDate());
+			if (invoice.discountAmt == null)
+				invoice.discountAmt = Env.ZERO;
+		}
+		return invoice.discountAmt;
+	}
+
+	/**
+	 * Find the open sales invoices of the numbers, in the index of the statement or else in one query
+	 * @param bsl bank statement line, its valuta date is the date of the discount
+	 * @param documentNos invoice numbers found in the memo
+	 * @return invoices with open amount, in the order of the numbers, the first invoice when a number is repeated
+	 */
+	private List<HibiscusOpenInvoiceIndex.OpenInvoice> findOpenInvoices(MBankStatementLine bsl, Set<String> documentNos) {
+		List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices = new ArrayList<HibiscusOpenInvoiceIndex.OpenInvoice>();
+		if (documentNos.isEmpty())
+			return invoices;
+		HibiscusOpenInvoiceIndex index = getIndex(bsl, false);
+		if (index != null) {
+			for (String documentNo : documentNos) {
+				HibiscusOpenInvoiceIndex.OpenInvoice invoice = index.get(documentNo);
+				if (invoice != null)
+					invoices.add(invoice);
+			}
+			return invoices;
+		}
+		StringBuilder where = new StringBuilder("AND i.DocumentNo IN (");
+		List<Object> params = new ArrayList<Object>();
+		for (String documentNo : documentNos) {
+			if (params.size() > 0)
+				where.append(",");
+			where.append("?");
+			params.add(documentNo);
+		}
+		where.append(") ORDER BY i.C_Invoice_ID");
+
+		Map<String, HibiscusOpenInvoiceIndex.OpenInvoice> byDocumentNo = new HashMap<String, HibiscusOpenInvoiceIndex.OpenInvoice>();
+		for (HibiscusOpenInvoiceIndex.OpenInvoice invoice : queryOpenInvoices(bsl, where.toString(), params.toArray(), Integer.MAX_VALUE)) {
+			if (!byDocumentNo.containsKey(invoice.documentNo))
+				byDocumentNo.put(invoice.documentNo, invoice);
+		}
+
+		for (String documentNo : documentNos) {
+			HibiscusOpenInvoiceIndex.OpenInvoice invoice = byDocumentNo.get(documentNo);
+			if (invoice != null)
+				invoices.add(invoice);
+		}
+		return invoices;
+	}
+
+	/**
+	 * Query the open sales invoices with the open amount and the discount at the valuta date of the line
+	 * @param bsl bank statement line
+	 * @param where condition added to the open invoices and order
+	 * @param params parameters of the condition
+	 * @param maxRows max number of invoices to read
+	 * @return invoices with positive open amount
+	 */
+	private List<HibiscusOpenInvoiceIndex.OpenInvoice> queryOpenInvoices(MBankStatementLine bsl, String where, Object[] params, int maxRows) {
+		List<HibiscusOpenInvoiceIndex.OpenInvoice> invoices = new ArrayList<HibiscusOpenInvoiceIndex.OpenInvoice>();
+		List<Object> allParams = new ArrayList<Object>();
+		allParams.add(bsl.getValutaDate());
+		allParams.add(bsl.getAD_Client_ID());
+		allParams.addAll(Arrays.asList(params));
+		String sql = SQL_OPEN_INVOICES + where;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, bsl.get_TrxName());
+			DB.setParameters(pstmt, allParams.toArray());
+			rs = pstmt.executeQuery();
+			while (rs.next() && invoices.size() < maxRows) {
+				HibiscusOpenInvoiceIndex.OpenInvoice invoice = new HibiscusOpenInvoiceIndex.OpenInvoice();
+				invoice.C_Invoice_ID = rs.getInt(1);
+				invoice.documentNo = rs.getString(2);
+				invoice.C_BPartner_ID = rs.getInt(3);
+				invoice.openAmt = rs.getBigDecimal(4);
+				invoice.discountAmt = rs.getBigDecimal(5);
+				if (invoice.discountAmt == null)
+					invoice.discountAmt = Env.ZERO;
+				if (invoice.openAmt != null && invoice.openAmt.signum() > 0)
+					invoices.add(invoice);
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, sql);
+		} finally {
+			DB.close(rs, pstmt);
+			rs = null;
+			pstmt = null;
+		}
+		return invoices;
+	}
+
+	/**
+	 * Scan the memo for the numbers of all the open invoices instead of using the patterns of BXS_SALES_INVOICE_MATCH_REGEX,
+	 * this is done only when the SysConfig BXS_SALES_INVOICE_MATCH_SCAN is Y
+	 * @param AD_Client_ID
+	 * @return true to scan the memo with HibiscusInvoiceNumberScanner
+	 */
+	private boolean isScanOpenInvoices(int AD_Client_ID) {
+		return MSysConfig.getBooleanValue("BXS_SALES_INVOICE_MATCH_SCAN", false, AD_Client_ID);
+	}
+
+	/**
+	 * Get the index of the open invoices for the statement of the line, it is loaded with the first line of a match run
+	 * and reused for the following statements of the run.
+	 * SysConfig BXS_HIBISCUS_MATCH_INDEX_MIN_LINES: min incoming payments in the statement to load the index (default 20)
+	 * SysConfig BXS_HIBISCUS_MATCH_INDEX_MAX_INVOICES: max open invoices of the client kept in memory (default 100000, 0 to disable the index)
+	 * @param bsl bank statement line
+	 * @param scan the memos are scanned for the open invoices, the index is needed whatever the number of lines
+	 * @return index, null when it is not used for the statement
+	 */
+	private HibiscusOpenInvoiceIndex getIndex(MBankStatementLine bsl, boolean scan) {
+		HibiscusOpenInvoiceIndex index = m_index;
+		if (index == null || index.AD_Client_ID != bsl.getAD_Client_ID() || index.C_BankStatement_ID != bsl.getC_BankStatement_ID()) {
+			int minLines = scan ? 0 : MSysConfig.getIntValue("BXS_HIBISCUS_MATCH_INDEX_MIN_LINES", 20, bsl.getAD_Client_ID());
+			int maxInvoices = MSysConfig.getIntValue("BXS_HIBISCUS_MATCH_INDEX_MAX_INVOICES", 100000, bsl.getAD_Client_ID());
+			if (maxInvoices <= 0)
+				return null;
+			// the index of the previous statement of the run is refreshed, the one of another client or run is replaced
+			index = HibiscusOpenInvoiceIndex.get(bsl.getAD_Client_ID(), bsl.getC_BankStatement_ID(), minLines, maxInvoices, bsl.get_TrxName());
+			m_index = index;
+			if (log.isLoggable(Level.FINE))
+				log.fine("Open invoices index for C_BankStatement_ID=" + index.C_BankStatement_ID + ": "
+						+ (index.isAvailable() ? index.size() + " invoices" : "not loaded"));
+		}
+		return index.isAvailable() ? index : null;
+	}
+
 	private void addDescription(MBankStatementLine bsl, String msg) {
 		String description = bsl.getDescription();
 		if (description == null)
@@ -125,37 +368,50 @@ public class HibiscusMatcherCustomerInvoiceInMemo implements BankStatementMatche
 
 	/**
 	 * Search within the memo field for invoice numbers that matches with pending invoices
-	 * @param bsi Bank Statement Match Info
 	 * @param eftMemo The memo field filled with Hibiscus Zweck+Zweck2+Zweck3
-	 * @param trxAmt The transaction amount of the statement line
+	 * @return invoice numbers found, in order and without repetitions
 	 */
-	private List<String> searchInvoiceIn(String eftMemo) {
-		List<String> invoiceArray = new ArrayList<String>();
+	private Set<String> searchInvoiceIn(String eftMemo) {
+		Set<String> invoices = new LinkedHashSet<String>();
+		// The EftMemo field comes with newlines
+		// Sometimes the invoice number is split between two lines
+		// for example: the invoice number 480202167177 - can come complete, or split in two lines, like 48020216\n7177
+		// so, a second round of pattern check is done removing the newlines
+		String joined = eftMemo.indexOf('\n') >= 0 ? eftMemo.replace("\n", "") : null;
+		for (Pattern pattern : getPatterns()) {
+			addMatches(invoices, pattern, eftMemo);
+			if (joined != null)
+				addMatches(invoices, pattern, joined);
+		}
+		return invoices;
+	}
+
+	/**
+	 * @return compiled patterns of BXS_SALES_INVOICE_MATCH_REGEX for the client
+	 */
+	private Pattern[] getPatterns() {
+		int AD_Client_ID = Env.getAD_Client_ID(Env.getCtx());
+		Pattern[] compiled = s_patterns.get(AD_Client_ID);
+		if (compiled != null)
+			return compiled;
 		// Example for BXS_SALES_INVOICE_MATCH_REGEX
 		// If the invoice number is expected to be 12 digits starting with 4802 the regex would be: (4802[0-9]{8})
 		// multiple patterns can be added separated by comma
-		String patterns = MSysConfig.getValue("BXS_SALES_INVOICE_MATCH_REGEX", Env.getAD_Client_ID(Env.getCtx()));
+		String patterns = MSysConfig.getValue("BXS_SALES_INVOICE_MATCH_REGEX", AD_Client_ID);
 		if (patterns == null)
 			throw new AdempiereException("First you need to configure the SysConfig BXS_SALES_INVOICE_MATCH_REGEX");
-		for (String pattern : patterns.split(",")) {
-			addPatternToArray(invoiceArray, pattern, eftMemo);
-			// The EftMemo field comes with newlines
-			// Sometimes the invoice number is split between two lines
-			// for example: the invoice number 480202167177 - can come complete, or split in two lines, like 48020216\n7177
-			// so, a second round of pattern check is done removing the newlines
-			addPatternToArray(invoiceArray, pattern, eftMemo.replaceAll("\n", ""));
-		}
-		return invoiceArray;
+		String[] split = patterns.split(",");
+		compiled = new Pattern[split.length];
+		for (int i = 0; i < split.length; i++)
+			compiled[i] = Pattern.compile(split[i]);
+		s_patterns.put(AD_Client_ID, compiled);
+		return compiled;
 	}
 
-	private void addPatternToArray(List<String> invoiceArray, String pattern, String eftMemo) {
-		Pattern p = Pattern.compile(pattern);
-		Matcher m = p.matcher(eftMemo);
-		while (m.find()) {
-			String matched = m.group(1);
-			if (! invoiceArray.contains(matched))
-				invoiceArray.add(matched);
-		}
+	private void addMatches(Set<String> invoices, Pattern pattern, String eftMemo) {
+		Matcher m = pattern.matcher(eftMemo);
+		while (m.find())
+			invoices.add(m.group(1));
 	}
 
 	/**
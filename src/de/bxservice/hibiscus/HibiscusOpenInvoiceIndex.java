@@ -0,0 +1,324 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.compiere.util.TrxEventListener;
+
+/**
+ * Open sales invoices of a client by DocumentNo, loaded with one query when the matcher
+ * starts with the lines of a bank statement, so the lines are answered from memory.
+ * The index is kept for the match run, the transaction of the statements matched, and refreshed
+ * for each following statement with the invoices allocated since, e.g. by the payments of the previous statement.
+ *
+ * The invoices are kept in arrays sorted by DocumentNo and searched with a binary search.
+ * The discount depends on the date of the payment, so only a flag is kept for the invoices
+ * with discount terms, their discount is calculated when needed.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusOpenInvoiceIndex {
+
+	/** Open sales invoices of the client, credit memos are not matched */
+	static final String SQL_FROM_OPEN_INVOICES =
+			"FROM C_Invoice i "
+			+ "JOIN C_DocType dt ON (i.C_DocType_ID=dt.C_DocType_ID) "
+			+ "WHERE i.AD_Client_ID=? AND i.IsActive='Y' AND i.IsSOTrx='Y' AND i.DocStatus IN ('CO','CL','WP') AND i.IsPaid='N' "
+			+ "AND dt.DocBaseType<>'ARC' ";
+
+	private static final String SQL_COUNT = "SELECT COUNT(*) " + SQL_FROM_OPEN_INVOICES;
+
+	/** Incoming payments of the statement, the lines matched with customer invoices */
+	private static final String SQL_COUNT_LINES = "SELECT COUNT(*) FROM C_BankStatementLine WHERE C_BankStatement_ID=? AND TrxAmt>0 AND IsActive='Y'";
+
+	private static final String SQL_LOAD =
+			"SELECT i.DocumentNo, i.C_Invoice_ID, i.C_BPartner_ID, invoiceOpen(i.C_Invoice_ID,0), "
+			+ "CASE WHEN EXISTS (SELECT 1 FROM C_PaymentTerm pt WHERE pt.C_PaymentTerm_ID=i.C_PaymentTerm_ID AND (pt.Discount<>0 OR pt.Discount2<>0)) "
+			+ "OR EXISTS (SELECT 1 FROM C_InvoicePaySchedule ips WHERE ips.C_Invoice_ID=i.C_Invoice_ID AND ips.DiscountAmt<>0) THEN 'Y' ELSE 'N' END "
+			+ SQL_FROM_OPEN_INVOICES
+			+ "ORDER BY i.C_Invoice_ID";
+
+	/** Index of each match run by client and transaction, removed when the transaction is closed */
+	private static final ConcurrentHashMap<String, HibiscusOpenInvoiceIndex> s_runs = new ConcurrentHashMap<String, HibiscusOpenInvoiceIndex>();
+
+	/** Invoices allocated since the load or the last refresh, with their open amount */
+	private static final String SQL_ALLOCATED =
+			"SELECT DISTINCT al.C_Invoice_ID, invoiceOpen(al.C_Invoice_ID,0) "
+			+ "FROM C_AllocationLine al "
+			+ "WHERE al.AD_Client_ID=? AND al.C_Invoice_ID IS NOT NULL AND al.Created>=?";
+
+	final int AD_Client_ID;
+	/** Statement being matched */
+	volatile int C_BankStatement_ID;
+	/** Start of the load or of the last refresh, the allocations created after it are checked by the refresh */
+	private Timestamp m_loaded;
+	/** Position of each invoice, built with the first refresh */
+	private Map<Integer, Integer> m_positions = null;
+	/** false when the statement has few lines or the client has too many open invoices, nothing is loaded */
+	private final boolean m_available;
+	private String[] m_documentNos = new String[0];
+	private int[] m_invoiceIds = new int[0];
+	private int[] m_bpartnerIds = new int[0];
+	private BigDecimal[] m_openAmts = new BigDecimal[0];
+	/** Invoices with discount terms, by position */
+	private final BitSet m_discount = new BitSet();
+	/** Automaton over the numbers, built when the memos are scanned for them */
+	private HibiscusInvoiceNumberScanner m_scanner = null;
+
+	private HibiscusOpenInvoiceIndex(int AD_Client_ID, int C_BankStatement_ID, boolean available) {
+		this.AD_Client_ID = AD_Client_ID;
+		this.C_BankStatement_ID = C_BankStatement_ID;
+		m_available = available;
+	}
+
+	/**
+	 * Get the index of the match run, the index loaded for a previous statement of the same
+	 * transaction is refreshed and reused
+	 * @param AD_Client_ID
+	 * @param C_BankStatement_ID statement being matched
+	 * @param minLines min number of incoming payments in the statement, for less lines the query by line is cheaper
+	 * @param maxInvoices max number of open invoices to keep in memory
+	 * @param trxName transaction of the match run, without transaction the index is loaded for the statement
+	 * @return index, not available when it cannot be used for the statement
+	 */
+	static HibiscusOpenInvoiceIndex get(int AD_Client_ID, int C_BankStatement_ID, int minLines, int maxInvoices, String trxName) {
+		if (trxName == null)
+			return load(AD_Client_ID, C_BankStatement_ID, minLines, maxInvoices, trxName);
+		String key = AD_Client_ID + "|" + trxName;
+		HibiscusOpenInvoiceIndex index = s_runs.get(key);
+		if (index != null && index.isAvailable()) {
+			if (index.C_BankStatement_ID != C_BankStatement_ID)
+				index.refresh(C_BankStatement_ID, trxName);
+			return index;
+		}
+		// the statement can have enough lines when the previous one had not
+		index = load(AD_Client_ID, C_BankStatement_ID, minLines, maxInvoices, trxName);
+		if (s_runs.put(key, index) == null) {
+			Trx trx = Trx.get(trxName, false);
+			if (trx == null)
+				s_runs.remove(key);
+			else
+				trx.addTrxEventListener(new TrxEventListener() {
+					@Override
+					public void afterCommit(Trx trx, boolean success) {
+					}
+					@Override
+					public void afterRollback(Trx trx, boolean success) {
+						// the refresh doesn't see the allocations rolled back
+						s_runs.remove(key);
+					}
+					@Override
+					public void afterClose(Trx trx) {
+						s_runs.remove(key);
+					}
+				});
+		}
+		return index;
+	}
+
+	/**
+	 * Load the open sales invoices of the client
+	 * @param AD_Client_ID
+	 * @param C_BankStatement_ID statement being matched, the index is valid for its lines
+	 * @param minLines min number of incoming payments in the statement, for less lines the query by line is cheaper
+	 * @param maxInvoices max number of open invoices to keep in memory
+	 * @param trxName
+	 * @return index, not available when the statement has less than minLines or the client more open invoices than maxInvoices
+	 */
+	static HibiscusOpenInvoiceIndex load(int AD_Client_ID, int C_BankStatement_ID, int minLines, int maxInvoices, String trxName) {
+		if (DB.getSQLValueEx(trxName, SQL_COUNT_LINES, C_BankStatement_ID) < minLines)
+			return new HibiscusOpenInvoiceIndex(AD_Client_ID, C_BankStatement_ID, false);
+		int count = DB.getSQLValueEx(trxName, SQL_COUNT, AD_Client_ID);
+		if (count > maxInvoices)
+			return new HibiscusOpenInvoiceIndex(AD_Client_ID, C_BankStatement_ID, false);
+
+		HibiscusOpenInvoiceIndex index = new HibiscusOpenInvoiceIndex(AD_Client_ID, C_BankStatement_ID, true);
+		index.m_loaded = new Timestamp(System.currentTimeMillis());
+		List<String> documentNos = new ArrayList<String>(count);
+		List<int[]> ids = new ArrayList<int[]>(count);
+		List<BigDecimal> openAmts = new ArrayList<BigDecimal>(count);
+		BitSet discount = new BitSet();
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(SQL_LOAD, trxName);
+			pstmt.setFetchSize(1000);
+			DB.setParameters(pstmt, AD_Client_ID);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				BigDecimal openAmt = rs.getBigDecimal(4);
+				if (openAmt == null || openAmt.signum() <= 0)
+					continue;
+				if ("Y".equals(rs.getString(5)))
+					discount.set(documentNos.size());
+				documentNos.add(rs.getString(1));
+				ids.add(new int[] {rs.getInt(2), rs.getInt(3)});
+				openAmts.add(openAmt);
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, SQL_LOAD);
+		} finally {
+			DB.close(rs, pstmt);
+			rs = null;
+			pstmt = null;
+		}
+
+		// sorted by DocumentNo in java order for the binary search, the stable sort keeps
+		// the invoice with the lowest ID first when a number is repeated, the others are dropped
+		Integer[] order = new Integer[documentNos.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> documentNos.get(a).compareTo(documentNos.get(b)));
+		int size = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i > 0 && documentNos.get(order[i]).equals(documentNos.get(order[i - 1])))
+				continue;
+			order[size++] = order[i];
+		}
+		index.m_documentNos = new String[size];
+		index.m_invoiceIds = new int[size];
+		index.m_bpartnerIds = new int[size];
+		index.m_openAmts = new BigDecimal[size];
+		for (int i = 0; i < size; i++) {
+			int from = order[i];
+			index.m_documentNos[i] = documentNos.get(from);
+			index.m_invoiceIds[i] = ids.get(from)[0];
+			index.m_bpartnerIds[i] = ids.get(from)[1];
+			index.m_openAmts[i] = openAmts.get(from);
+			if (discount.get(from))
+				index.m_discount.set(i);
+		}
+		return index;
+	}
+
+	/**
+	 * Update the open amount of the invoices allocated since the load or the last refresh,
+	 * the invoices paid are not found anymore
+	 * @param C_BankStatement_ID next statement being matched
+	 * @param trxName
+	 */
+	private synchronized void refresh(int C_BankStatement_ID, String trxName) {
+		if (m_positions == null) {
+			m_positions = new HashMap<Integer, Integer>(m_invoiceIds.length * 2);
+			for (int i = 0; i < m_invoiceIds.length; i++)
+				m_positions.put(m_invoiceIds[i], i);
+		}
+		Timestamp since = m_loaded;
+		m_loaded = new Timestamp(System.currentTimeMillis());
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(SQL_ALLOCATED, trxName);
+			DB.setParameters(pstmt, AD_Client_ID, since);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				Integer pos = m_positions.get(rs.getInt(1));
+				if (pos == null)
+					continue;
+				BigDecimal openAmt = rs.getBigDecimal(2);
+				m_openAmts[pos] = openAmt != null && openAmt.signum() > 0 ? openAmt : null;
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, SQL_ALLOCATED);
+		} finally {
+			DB.close(rs, pstmt);
+			rs = null;
+			pstmt = null;
+		}
+		this.C_BankStatement_ID = C_BankStatement_ID;
+	}
+
+	/**
+	 * @return false when the invoices were not loaded, get cannot be used
+	 */
+	boolean isAvailable() {
+		return m_available;
+	}
+
+	/**
+	 * @return number of invoices in the index
+	 */
+	int size() {
+		return m_documentNos.length;
+	}
+
+	/**
+	 * @param minDigits min length of the numbers with only digits
+	 * @return scanner to find the numbers of the open invoices in a memo
+	 */
+	synchronized HibiscusInvoiceNumberScanner getScanner(int minDigits) {
+		if (m_scanner == null || m_scanner.getMinDigits() != minDigits)
+			m_scanner = new HibiscusInvoiceNumberScanner(m_documentNos, minDigits);
+		return m_scanner;
+	}
+
+	/**
+	 * @param documentNo
+	 * @return open invoice with the number, null if there is none, the discount is null when the invoice has discount terms
+	 */
+	OpenInvoice get(String documentNo) {
+		int pos = Arrays.binarySearch(m_documentNos, documentNo);
+		// not found or paid since the load
+		if (pos < 0 || m_openAmts[pos] == null)
+			return null;
+		OpenInvoice invoice = new OpenInvoice();
+		invoice.C_Invoice_ID = m_invoiceIds[pos];
+		invoice.documentNo = m_documentNos[pos];
+		invoice.C_BPartner_ID = m_bpartnerIds[pos];
+		invoice.openAmt = m_openAmts[pos];
+		invoice.discountAmt = m_discount.get(pos) ? null : Env.ZERO;
+		return invoice;
+	}
+
+	/**
+	 * Open sales invoice found for a number in the memo
+	 */
+	static class OpenInvoice {
+		int C_Invoice_ID;
+		String documentNo;
+		int C_BPartner_ID;
+		BigDecimal openAmt;
+		/** Discount at the date of the statement line, null when not calculated yet */
+		BigDecimal discountAmt;
+	}
+
+}
@@ -0,0 +1,198 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.adempiere.exceptions.AdempiereException;
+
+/**
+ * Decode and validation stage of the pipelined load, HibiscusCSVReader is read on its own
+ * thread and the decoded rows are handed to the persist stage through a bounded queue.
+ *
+ * Only the CPU bound work runs here: parsing, checksum and duplicates within the file.
+ * The results are stored in the row, the database checks and the messages are left
+ * to the consumer thread. Rows come out in file order, a parse error is queued at the
+ * position of the failing record, so the consumer reports the same line as a
+ * sequential load. The row holders are recycled, a row must be given back with
+ * recycle() when the consumer is done with it.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusParseStage implements Runnable {
+
+	/** Marks the end of the file in the queue */
+	private static final HibiscusRow END = new HibiscusRow();
+
+	private final HibiscusCSVReader m_reader;
+	private final boolean m_validateChecksum;
+	private final boolean m_validateDups;
+	private final BlockingQueue<HibiscusRow> m_ready;
+	private final BlockingQueue<HibiscusRow> m_free;
+	private final HibiscusChecksum m_checksum = new HibiscusChecksum();
+	/** Umsatz_Id seen in the file, per Konto_Id */
+	private final Map<Integer, IntHashSet> m_seen = new HashMap<Integer, IntHashSet>();
+	private Thread m_thread = null;
+	private volatile boolean m_stopped = false;
+	private Throwable m_error = null;
+	/** Records read when the error happened */
+	private int m_errorRecordNo = 0;
+	/** Record number of the last row returned by take */
+	private int m_recordNo = 0;
+
+	/**
+	 * @param reader CSV reader, positioned after the header
+	 * @param queueSize max number of decoded rows waiting for the persist stage
+	 * @param validateChecksum verify the checksum of the rows
+	 * @param validateDups flag the Umsatz_Id repeated within the file
+	 */
+	HibiscusParseStage(HibiscusCSVReader reader, int queueSize, boolean validateChecksum, boolean validateDups) {
+		m_reader = reader;
+		m_validateChecksum = validateChecksum;
+		m_validateDups = validateDups;
+		if (queueSize < 1)
+			queueSize = 1;
+		// one more holder than the queue for the row being decoded and one for the row being persisted,
+		// plus the slot for the end or error marker
+		m_ready = new ArrayBlockingQueue<HibiscusRow>(queueSize + 3);
+		m_free = new ArrayBlockingQueue<HibiscusRow>(queueSize + 2);
+		for (int i = 0; i < queueSize + 2; i++)
+			m_free.add(new HibiscusRow());
+	}
+
+	/**
+	 * Start the decoding thread
+	 */
+	void start() {
+		m_thread = new Thread(this, "HibiscusLoader-parse");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!m_stopped) {
+				HibiscusRow row = m_free.take();
+				if (!m_reader.next(row)) {
+					m_ready.put(END);
+					return;
+				}
+				validate(row);
+				m_ready.put(row);
+			}
+		} catch (InterruptedException e) {
+			// stopped by the consumer
+		} catch (Throwable e) {
+			m_error = e;
+			m_errorRecordNo = m_reader.getRecordCount();
+			try {
+				m_ready.put(END);
+			} catch (InterruptedException e1) {
+				// stopped by the consumer
+			}
+		}
+	}
+
+	private void validate(HibiscusRow row) {
+		if (row.error != null)
+			return;
+		if (m_validateChecksum) {
+			row.checksumOk = m_checksum.verify(row);
+			row.calculatedChecksum = m_checksum.getChecksum();
+		}
+		if (m_validateDups) {
+			Integer kontoId = Integer.valueOf(row.kontoId);
+			IntHashSet seen = m_seen.get(kontoId);
+			if (seen == null) {
+				seen = new IntHashSet(1024);
+				m_seen.put(kontoId, seen);
+			}
+			row.duplicateInFile = !seen.add(row.umsatzId);
+		}
+	}
+
+	/**
+	 * Wait for the next decoded row
+	 * @return row, null at the end of the file
+	 * @throws IOException error reading the file
+	 * @throws InterruptedException
+	 */
+	HibiscusRow take() throws IOException, InterruptedException {
+		HibiscusRow row = m_ready.take();
+		if (row != END) {
+			m_recordNo = row.recordNo;
+			return row;
+		}
+		if (m_error != null)
+			m_recordNo = m_errorRecordNo;
+		// the end marker is put after the error is set, so the error is visible here
+		if (m_error instanceof IOException)
+			throw (IOException) m_error;
+		if (m_error instanceof RuntimeException)
+			throw (RuntimeException) m_error;
+		if (m_error != null)
+			throw new AdempiereException(m_error);
+		return null;
+	}
+
+	/**
+	 * @return record number of the last row returned by take,
+	 * after take failed it is the number of the record before the failing one
+	 */
+	int getRecordNo() {
+		return m_recordNo;
+	}
+
+	/**
+	 * Give back a row returned by take, its holder is reused for a next row
+	 * @param row
+	 */
+	void recycle(HibiscusRow row) {
+		m_free.offer(row);
+	}
+
+	/**
+	 * Stop the decoding thread, called when the load finishes or fails
+	 */
+	void stop() {
+		m_stopped = true;
+		if (m_thread != null) {
+			m_thread.interrupt();
+			try {
+				m_thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_thread = null;
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.util.logging.Level;
+
+import org.compiere.util.CLogger;
+
+/**
+ * Progress of the import of a file, shown in the status of the process dialog through SvrProcess.statusUpdate
+ * while the process is running (nothing is shown when it runs as a background job) and logged with level FINE.
+ *
+ * The progress is attached to the thread executing a stage, so the loader called by the standard
+ * process can report the rows read and the position in the file without knowing the process.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusProgress {
+
+	/**
+	 * Receiver of the progress messages, it can be called from several threads
+	 */
+	interface Listener {
+		void update(String message);
+	}
+
+	/**	Logger */
+	private static final CLogger s_log = CLogger.getCLogger(HibiscusProgress.class);
+
+	/** Minimum time between two updates of the rows */
+	private static final long INTERVAL_MILLIS = 1000;
+
+	private static final ThreadLocal<HibiscusProgress> s_current = new ThreadLocal<HibiscusProgress>();
+
+	private final Listener m_listener;
+	private final String m_name;
+	private String m_stage = "";
+	private long m_stageStart = 0;
+	private long m_lastUpdate = 0;
+
+	/**
+	 * @param listener
+	 * @param name shown before the messages, e.g. the file name, can be null
+	 */
+	HibiscusProgress(Listener listener, String name) {
+		m_listener = listener;
+		m_name = name;
+	}
+
+	/**
+	 * @return progress attached to the current thread, null when nobody follows the progress
+	 */
+	static HibiscusProgress get() {
+		return s_current.get();
+	}
+
+	/**
+	 * Attach the progress to the current thread until detach is called
+	 */
+	void attach() {
+		s_current.set(this);
+	}
+
+	static void detach() {
+		s_current.remove();
+	}
+
+	/**
+	 * Start of a stage
+	 * @param stage name of the stage
+	 * @param stageNo number of the stage in the chain
+	 * @param stageCount number of stages of the chain
+	 */
+	void stage(String stage, int stageNo, int stageCount) {
+		m_stage = stage + " (" + stageNo + "/" + stageCount + ")";
+		m_stageStart = System.currentTimeMillis();
+		update(m_stage);
+	}
+
+	/**
+	 * Rows processed by the current stage, the update is sent at most once per second
+	 * @param rows rows processed
+	 * @param done work done, e.g. bytes read from the file
+	 * @param total total work, 0 when unknown
+	 */
+	void rows(int rows, long done, long total) {
+		long now = System.currentTimeMillis();
+		if (now - m_lastUpdate < INTERVAL_MILLIS)
+			return;
+		StringBuilder msg = new StringBuilder(m_stage).append(": ").append(rows).append(" rows");
+		if (total > 0 && done > 0) {
+			msg.append(", ").append(Math.min(100, done * 100 / total)).append(" %");
+			// the estimation assumes the rest of the file is processed at the same speed
+			if (done < total)
+				msg.append(", ").append(formatDuration((now - m_stageStart) * (total - done) / done)).append(" remaining");
+		}
+		update(msg.toString());
+	}
+
+	private void update(String message) {
+		m_lastUpdate = System.currentTimeMillis();
+		String text = m_name != null ? m_name + " - " + message : message;
+		if (s_log.isLoggable(Level.FINE))
+			s_log.fine(text);
+		m_listener.update(text);
+	}
+
+	/**
+	 * @param millis
+	 * @return duration as [h:]mm:ss
+	 */
+	static String formatDuration(long millis) {
+		long seconds = (millis + 999) / 1000;
+		long hours = seconds / 3600;
+		long minutes = (seconds / 60) % 60;
+		seconds = seconds % 60;
+		StringBuilder sb = new StringBuilder();
+		if (hours > 0)
+			sb.append(hours).append(':');
+		if (minutes < 10)
+			sb.append('0');
+		sb.append(minutes).append(':');
+		if (seconds < 10)
+			sb.append('0');
+		sb.append(seconds);
+		return sb.toString();
+	}
+
+}
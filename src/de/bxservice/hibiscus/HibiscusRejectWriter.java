@@ -0,0 +1,175 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the rows rejected by the loader to a CSV file next to the input file, with the columns of
+ * the template de.willuhn.jameica.hbci.rmi.Umsatz.csv.vm plus the column Error with the problem.
+ * The file can be loaded again once the rows are fixed, HibiscusCSVReader ignores the error column.
+ * The file is created with the first rejected row.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusRejectWriter implements Closeable {
+
+	private final File m_file;
+	private Writer m_writer = null;
+	private int m_count = 0;
+	/** The file is continued, written by a load resumed from a checkpoint */
+	private boolean m_append = false;
+
+	/**
+	 * @param file reject file, see getRejectFile
+	 */
+	HibiscusRejectWriter(File file) {
+		m_file = file;
+	}
+
+	/**
+	 * Continue the reject file of a load resumed from a checkpoint,
+	 * the rows written after the checkpoint are discarded
+	 * @param file reject file, see getRejectFile
+	 * @param length length of the file at the checkpoint
+	 * @throws IOException
+	 */
+	HibiscusRejectWriter(File file, long length) throws IOException {
+		m_file = file;
+		if (length > 0 && file.exists()) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(length);
+			}
+			m_append = true;
+		} else if (file.exists()) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Get the reject file for an input file: x.csv, x.csv.gz or x.zip are rejected to x.rejected.csv
+	 * @param fileName input file
+	 * @return reject file in the same directory
+	 */
+	static File getRejectFile(String fileName) {
+		File input = new File(fileName);
+		String name = input.getName();
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+			lower = lower.substring(0, lower.length() - 3);
+		}
+		if (lower.endsWith(".csv") || lower.endsWith(".zip"))
+			name = name.substring(0, name.length() - 4);
+		return new File(input.getAbsoluteFile().getParentFile(), name + ".rejected.csv");
+	}
+
+	/**
+	 * Write the raw values of the row and the problem found
+	 * @param row
+	 * @param error
+	 * @throws IOException
+	 */
+	void write(HibiscusRow row, String error) throws IOException {
+		if (m_writer == null) {
+			m_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_file, m_append), Charset.forName("UTF-8")));
+			if (!m_append) {
+				for (int i = 0; i < HibiscusRow.COLUMN_COUNT; i++) {
+					writeValue(HibiscusRow.COLUMN_NAMES[i]);
+					m_writer.write(';');
+				}
+				writeValue(HibiscusCSVReader.ERROR_COLUMN);
+				m_writer.write('\n');
+			}
+		}
+		for (int i = 0; i < HibiscusRow.COLUMN_COUNT; i++) {
+			writeValue(row.get(i));
+			m_writer.write(';');
+		}
+		writeValue(error);
+		m_writer.write('\n');
+		m_count++;
+	}
+
+	/**
+	 * Null values are written empty without quotes, so they are read again as null
+	 */
+	private void writeValue(String value) throws IOException {
+		if (value == null)
+			return;
+		m_writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"')
+				m_writer.write('"');
+			m_writer.write(c);
+		}
+		m_writer.write('"');
+	}
+
+	/**
+	 * Write the buffered rows to the file
+	 * @return length of the file, 0 when no row was rejected
+	 * @throws IOException
+	 */
+	long flush() throws IOException {
+		if (m_writer != null)
+			m_writer.flush();
+		return m_file.exists() ? m_file.length() : 0;
+	}
+
+	/**
+	 * @return number of rejected rows
+	 */
+	int getCount() {
+		return m_count;
+	}
+
+	/**
+	 * @return the reject file
+	 */
+	File getFile() {
+		return m_file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (m_writer != null) {
+			m_writer.close();
+			m_writer = null;
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+/**
+ * Mutable holder for one row of the Hibiscus CSV file (de.willuhn.jameica.hbci.rmi.Umsatz.csv.vm),
+ * the same instance is refilled by HibiscusCSVReader for every row
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusRow {
+
+	/** Column positions in the velocity template */
+	static final int Konto_AccountNo = 0;
+	static final int Konto_RoutingNo = 1;
+	static final int Konto_Id = 2;
+	static final int Umsatz_Id = 3;
+	static final int Empfaenger_Konto = 4;
+	static final int Empfaenger_Blz = 5;
+	static final int Empfaenger_Name = 6;
+	static final int Betrag = 7;
+	static final int Zweck = 8;
+	static final int Zweck2 = 9;
+	static final int Zweck3 = 10;
+	static final int Datum = 11;
+	static final int Valuta = 12;
+	static final int Kommentar = 13;
+	static final int Checksum = 14;
+	static final int GvCode = 15;
+	static final int EndToEndId = 16;
+	static final int MandateId = 17;
+	static final int PrimaNota = 18;
+	static final int Art = 19;
+	static final int CustomerRef = 20;
+	static final int AddKey = 21;
+	static final int TxId = 22;
+	static final int PurposeCode = 23;
+	static final int Empfaenger_Name2 = 24;
+	static final int UmsatzTyp_Name = 25;
+
+	/** Column names in the header of the CSV file, in template order */
+	static final String[] COLUMN_NAMES = new String[] {
+			"Konto_AccountNo",
+			"Konto_RoutingNo",
+			"Konto_Id",
+			"Umsatz_Id",
+			"Empfaenger_Konto",
+			"Empfaenger_Blz",
+			"Empfaenger_Name",
+			"Betrag",
+			"Zweck",
+			"Zweck2",
+			"Zweck3",
+			"Datum",
+			"Valuta",
+			"Kommentar",
+			"Checksum",
+			"GvCode",
+			"EndToEndId",
+			"MandateId",
+			"PrimaNota",
+			"Art",
+			"CustomerRef",
+			"AddKey",
+			"TxId",
+			"PurposeCode",
+			"Empfaenger_Name2",
+			"UmsatzTyp_Name"
+	};
+
+	static final int COLUMN_COUNT = COLUMN_NAMES.length;
+
+	/** Raw values by column position, null when the column was empty, quoted or not */
+	final String[] values = new String[COLUMN_COUNT];
+
+	/** Parsed values */
+	int kontoId;
+	int umsatzId;
+	BigDecimal betrag;
+	Timestamp datum;
+	Timestamp valuta;
+	Long checksum;
+
+	/** Number of the record in the file, the header is the record 1 */
+	int recordNo;
+
+	/** Problem decoding the row, set only when the reader is lenient */
+	String error;
+
+	/** Validation results when the row is validated by HibiscusParseStage, checksumOk is null when not verified */
+	Boolean checksumOk;
+	long calculatedChecksum;
+	boolean duplicateInFile;
+
+	/**
+	 * @param column column position
+	 * @return raw value
+	 */
+	String get(int column) {
+		return values[column];
+	}
+
+}
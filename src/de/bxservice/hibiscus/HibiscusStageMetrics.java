@@ -0,0 +1,277 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+
+/**
+ * Wall time, rows, SQL statements and table scans of the stages of the Hibiscus import,
+ * accumulated for the whole server and published as MBeans.
+ *
+ * The samples recorded by a thread between beginCapture and endCapture are also returned
+ * to the caller, this way LoadImportProcessBankStatement writes the details of the loader to the process log.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+public class HibiscusStageMetrics implements HibiscusStageMetricsMBean {
+
+	/**	Logger */
+	private static final CLogger s_log = CLogger.getCLogger(HibiscusStageMetrics.class);
+
+	private static final String DOMAIN = "de.bxservice.hibiscus";
+
+	/** Metrics by stage name */
+	private static final ConcurrentHashMap<String, HibiscusStageMetrics> s_metrics = new ConcurrentHashMap<String, HibiscusStageMetrics>();
+	/** Samples recorded by the thread while capturing */
+	private static final ThreadLocal<List<Sample>> s_capture = new ThreadLocal<List<Sample>>();
+
+	private final String m_name;
+	private final AtomicLong m_runs = new AtomicLong();
+	private final AtomicLong m_rows = new AtomicLong();
+	private final AtomicLong m_millis = new AtomicLong();
+	private final AtomicLong m_sqlCount = new AtomicLong();
+	private final AtomicLong m_tableScans = new AtomicLong();
+	private volatile long m_lastRows = 0;
+	private volatile long m_lastMillis = 0;
+
+	private HibiscusStageMetrics(String name) {
+		m_name = name;
+	}
+
+	/**
+	 * Get the metrics of a stage, registering the MBean the first time
+	 * @param name stage name
+	 * @return metrics
+	 */
+	static HibiscusStageMetrics get(String name) {
+		HibiscusStageMetrics metrics = s_metrics.get(name);
+		if (metrics == null) {
+			metrics = new HibiscusStageMetrics(name);
+			HibiscusStageMetrics previous = s_metrics.putIfAbsent(name, metrics);
+			if (previous != null)
+				return previous;
+			metrics.register();
+		}
+		return metrics;
+	}
+
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = getObjectName();
+			try {
+				server.registerMBean(this, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				// left by a previous start of the bundle
+				server.unregisterMBean(objectName);
+				server.registerMBean(this, objectName);
+			}
+		} catch (JMException | SecurityException e) {
+			s_log.log(Level.WARNING, m_name, e);
+		}
+	}
+
+	/**
+	 * Unregister the MBeans of all the stages, called when the bundle is stopped
+	 */
+	static void unregisterAll() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (HibiscusStageMetrics metrics : s_metrics.values()) {
+			try {
+				ObjectName objectName = metrics.getObjectName();
+				if (server.isRegistered(objectName))
+					server.unregisterMBean(objectName);
+			} catch (JMException | SecurityException e) {
+				s_log.log(Level.WARNING, metrics.m_name, e);
+			}
+		}
+		s_metrics.clear();
+	}
+
+	private ObjectName getObjectName() throws MalformedObjectNameException {
+		return new ObjectName(DOMAIN + ":type=ImportStage,name=" + ObjectName.quote(m_name));
+	}
+
+	/**
+	 * Table scans of the transaction reported by PostgreSQL, each statement reading a table counts once per table,
+	 * this way the work of the standard processes is measured too, reported apart from the SQL statements of the plugin
+	 * @param trxName
+	 * @return scans of the transaction, -1 when not available
+	 */
+	static long countTableScans(String trxName) {
+		if (trxName == null || !DB.isPostgreSQL())
+			return -1;
+		return DB.getSQLValueEx(trxName, "SELECT COALESCE(SUM(COALESCE(seq_scan,0)+COALESCE(idx_scan,0)),0) FROM pg_stat_xact_user_tables");
+	}
+
+	/**
+	 * Record an execution of a stage
+	 * @param name stage name
+	 * @param rows rows processed
+	 * @param millis elapsed time
+	 * @param sqlCount SQL statements issued, 0 when not counted
+	 */
+	static void record(String name, long rows, long millis, long sqlCount) {
+		record(name, rows, millis, sqlCount, -1);
+	}
+
+	/**
+	 * Record an execution of a stage
+	 * @param name stage name
+	 * @param rows rows processed
+	 * @param millis elapsed time
+	 * @param sqlCount SQL statements issued by the plugin code, 0 when not counted
+	 * @param tableScans table scans of the transaction, see {@link #countTableScans(String)}, -1 when not available
+	 */
+	static void record(String name, long rows, long millis, long sqlCount, long tableScans) {
+		get(name).add(rows, millis, sqlCount, tableScans);
+		List<Sample> samples = s_capture.get();
+		if (samples != null)
+			samples.add(new Sample(name, rows, millis, sqlCount, tableScans));
+	}
+
+	private void add(long rows, long millis, long sqlCount, long tableScans) {
+		m_runs.incrementAndGet();
+		m_rows.addAndGet(rows);
+		m_millis.addAndGet(millis);
+		m_sqlCount.addAndGet(sqlCount);
+		if (tableScans > 0)
+			m_tableScans.addAndGet(tableScans);
+		m_lastRows = rows;
+		m_lastMillis = millis;
+	}
+
+	/**
+	 * Start collecting the samples recorded by the current thread
+	 */
+	static void beginCapture() {
+		s_capture.set(new ArrayList<Sample>());
+	}
+
+	/**
+	 * @return samples recorded by the current thread since beginCapture, empty when not capturing
+	 */
+	static List<Sample> endCapture() {
+		List<Sample> samples = s_capture.get();
+		s_capture.remove();
+		return samples != null ? samples : new ArrayList<Sample>();
+	}
+
+	/**
+	 * @param rows
+	 * @param millis
+	 * @return rows per second
+	 */
+	static long rowsPerSecond(long rows, long millis) {
+		return rows * 1000 / Math.max(millis, 1);
+	}
+
+	@Override
+	public long getRuns() {
+		return m_runs.get();
+	}
+
+	@Override
+	public long getRows() {
+		return m_rows.get();
+	}
+
+	@Override
+	public long getMillis() {
+		return m_millis.get();
+	}
+
+	@Override
+	public long getRowsPerSecond() {
+		return rowsPerSecond(m_rows.get(), m_millis.get());
+	}
+
+	@Override
+	public long getSqlCount() {
+		return m_sqlCount.get();
+	}
+
+	@Override
+	public long getTableScans() {
+		return m_tableScans.get();
+	}
+
+	@Override
+	public long getLastRows() {
+		return m_lastRows;
+	}
+
+	@Override
+	public long getLastMillis() {
+		return m_lastMillis;
+	}
+
+	@Override
+	public void reset() {
+		m_runs.set(0);
+		m_rows.set(0);
+		m_millis.set(0);
+		m_sqlCount.set(0);
+		m_tableScans.set(0);
+		m_lastRows = 0;
+		m_lastMillis = 0;
+	}
+
+	/**
+	 * One execution of a stage
+	 */
+	static class Sample {
+		final String name;
+		final long rows;
+		final long millis;
+		final long sqlCount;
+		/** -1 when not available */
+		final long tableScans;
+
+		Sample(String name, long rows, long millis, long sqlCount, long tableScans) {
+			this.name = name;
+			this.rows = rows;
+			this.millis = millis;
+			this.sqlCount = sqlCount;
+			this.tableScans = tableScans;
+		}
+	}
+
+}
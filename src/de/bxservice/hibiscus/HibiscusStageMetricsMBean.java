@@ -0,0 +1,83 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+/**
+ * JMX view of the metrics of a stage of the Hibiscus import, registered as
+ * de.bxservice.hibiscus:type=ImportStage,name=&lt;stage&gt;
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+public interface HibiscusStageMetricsMBean {
+
+	/**
+	 * @return number of executions of the stage
+	 */
+	public long getRuns();
+
+	/**
+	 * @return rows processed by all the executions
+	 */
+	public long getRows();
+
+	/**
+	 * @return elapsed time of all the executions in milliseconds
+	 */
+	public long getMillis();
+
+	/**
+	 * @return rows per second over all the executions
+	 */
+	public long getRowsPerSecond();
+
+	/**
+	 * @return SQL statements issued by the plugin code in the stage, a JDBC batch is counted once,
+	 * the statements of the standard processes are not included
+	 */
+	public long getSqlCount();
+
+	/**
+	 * @return table scans (sequential and index) of the transaction in the stage reported by PostgreSQL,
+	 * a statement reading several tables counts once per table, 0 on other databases
+	 */
+	public long getTableScans();
+
+	/**
+	 * @return rows processed by the last execution
+	 */
+	public long getLastRows();
+
+	/**
+	 * @return elapsed time of the last execution in milliseconds
+	 */
+	public long getLastMillis();
+
+	/**
+	 * Set the counters to zero
+	 */
+	public void reset();
+
+}
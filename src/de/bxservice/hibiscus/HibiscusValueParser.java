@@ -0,0 +1,162 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parser for the dates (Datum, Valuta) and amounts (Betrag) of the Hibiscus CSV file.
+ * Dates in the canonical dd.MM.yyyy form are read directly from the characters and cached,
+ * amounts are read as fixed point numbers with comma or dot as decimal separator.
+ * Any other form falls back to SimpleDateFormat / BigDecimal, so the values are the same.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusValueParser {
+
+	/** Dates in a statement repeat a lot, the cache is cleared when it reaches this size */
+	private static final int MAX_CACHED_DATES = 1024;
+	/** Max number of digits that fit in the unscaled long of an amount */
+	private static final int MAX_AMOUNT_DIGITS = 18;
+
+	private final Map<Integer, Timestamp> m_dates = new HashMap<Integer, Timestamp>();
+	private final Calendar m_calendar = new GregorianCalendar();
+	private DateFormat m_dateFormat = null;
+
+	HibiscusValueParser() {
+		m_calendar.setLenient(false);
+	}
+
+	/**
+	 * Parse a date in the format dd.MM.yyyy,
+	 * the returned Timestamp can be shared between rows, so it must not be modified
+	 * @param value
+	 * @return date at 00:00 of the default time zone
+	 * @throws ParseException
+	 */
+	Timestamp parseDate(String value) throws ParseException {
+		if (value.length() == 10 && value.charAt(2) == '.' && value.charAt(5) == '.') {
+			int day = digits(value, 0, 2);
+			int month = digits(value, 3, 5);
+			int year = digits(value, 6, 10);
+			if (day > 0 && month > 0 && year > 0) {
+				Integer key = Integer.valueOf(year * 10000 + month * 100 + day);
+				Timestamp date = m_dates.get(key);
+				if (date == null) {
+					date = toTimestamp(year, month, day, value);
+					if (m_dates.size() >= MAX_CACHED_DATES)
+						m_dates.clear();
+					m_dates.put(key, date);
+				}
+				return date;
+			}
+		}
+		return new Timestamp(getDateFormat().parse(value).getTime());
+	}
+
+	private Timestamp toTimestamp(int year, int month, int day, String value) throws ParseException {
+		m_calendar.clear();
+		m_calendar.set(year, month - 1, day);
+		try {
+			return new Timestamp(m_calendar.getTimeInMillis());
+		} catch (IllegalArgumentException e) {
+			// invalid day of month, let SimpleDateFormat report the same error
+			return new Timestamp(getDateFormat().parse(value).getTime());
+		}
+	}
+
+	private DateFormat getDateFormat() {
+		if (m_dateFormat == null) {
+			m_dateFormat = new SimpleDateFormat("dd.MM.yyyy");
+			m_dateFormat.setLenient(false);
+		}
+		return m_dateFormat;
+	}
+
+	/**
+	 * @return the value of the decimal digits between start and end, -1 if there is a non digit character
+	 */
+	private static int digits(String value, int start, int end) {
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	/**
+	 * Parse an amount, depending on Hibiscus configuration sometimes the decimal separator is sent as comma
+	 * @param value
+	 * @return amount with the scale of the decimals in the value
+	 * @throws NumberFormatException
+	 */
+	BigDecimal parseAmount(String value) {
+		int len = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (len > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			i++;
+		}
+		long unscaled = 0;
+		int nDigits = 0;
+		int scale = 0;
+		boolean separator = false;
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (++nDigits > MAX_AMOUNT_DIGITS)
+					return parseAmountSlow(value);
+				unscaled = unscaled * 10 + (c - '0');
+				if (separator)
+					scale++;
+			} else if ((c == ',' || c == '.') && !separator) {
+				separator = true;
+			} else {
+				return parseAmountSlow(value);
+			}
+		}
+		if (nDigits == 0)
+			return parseAmountSlow(value);
+		return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+	}
+
+	private BigDecimal parseAmountSlow(String value) {
+		return new BigDecimal(value.replace(",", "."));
+	}
+
+}
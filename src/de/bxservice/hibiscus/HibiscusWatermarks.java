@@ -0,0 +1,106 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * High-water marks of the Hibiscus accounts (Konto_Id): highest Umsatz_Id and latest
+ * statement line date already loaded for the bank account.
+ *
+ * Hibiscus exports are cumulative and the Umsatz_Id grows with every new transaction,
+ * so a row with an Umsatz_Id and a Datum not above the mark of its account is skipped
+ * without decoding the rest of the row, when its Umsatz_Id is one of the ids already loaded.
+ * A row below the mark that was never loaded (rejected or corrected before) is loaded as usual.
+ * The marks are registered by the loader when the bank account is resolved and can be
+ * read from the parse thread of the pipelined load, they share the ids loaded for the bank account,
+ * which are not changed once loaded.
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class HibiscusWatermarks {
+
+	private final Map<Integer, Mark> m_marks = new ConcurrentHashMap<Integer, Mark>();
+
+	/**
+	 * Register the mark of a Hibiscus account, the first registered mark is kept
+	 * @param kontoId Konto_Id
+	 * @param umsatzId highest Umsatz_Id loaded
+	 * @param datum latest statement line date loaded
+	 * @param loaded sets of the Umsatz_Id loaded for the bank account, not changed after the registration
+	 */
+	void register(int kontoId, int umsatzId, Timestamp datum, IntHashSet... loaded) {
+		if (datum == null)
+			return;
+		Integer key = Integer.valueOf(kontoId);
+		if (!m_marks.containsKey(key))
+			m_marks.put(key, new Mark(umsatzId, datum, loaded));
+	}
+
+	/**
+	 * @param kontoId Konto_Id
+	 * @param umsatzId Umsatz_Id
+	 * @return true when the Umsatz_Id is not above the mark of the account, the date must be checked with isImported
+	 */
+	boolean isBelow(int kontoId, int umsatzId) {
+		Mark mark = m_marks.get(Integer.valueOf(kontoId));
+		return mark != null && umsatzId <= mark.umsatzId;
+	}
+
+	/**
+	 * @param kontoId Konto_Id
+	 * @param umsatzId Umsatz_Id
+	 * @param datum Datum
+	 * @return true when the row is not above the mark of the account and was loaded
+	 */
+	boolean isImported(int kontoId, int umsatzId, Timestamp datum) {
+		Mark mark = m_marks.get(Integer.valueOf(kontoId));
+		return mark != null && umsatzId <= mark.umsatzId && !datum.after(mark.datum) && mark.isLoaded(umsatzId);
+	}
+
+	static class Mark {
+		protected final int umsatzId;
+		protected final Timestamp datum;
+		protected final IntHashSet[] loaded;
+
+		Mark(int umsatzId, Timestamp datum, IntHashSet[] loaded) {
+			this.umsatzId = umsatzId;
+			this.datum = datum;
+			this.loaded = loaded;
+		}
+
+		boolean isLoaded(int umsatzId) {
+			for (IntHashSet ids : loaded) {
+				if (ids.contains(umsatzId))
+					return true;
+			}
+			return false;
+		}
+	}
+
+}
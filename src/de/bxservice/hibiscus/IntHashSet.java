@@ -0,0 +1,131 @@
+/***********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - BX Service                              *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of primitive int values (open addressing, linear probing)
+ * used to keep the Umsatz_Id already known for a bank account without boxing
+ *
+ * @author Carlos Ruiz - globalqss - BX Service
+ */
+class IntHashSet {
+
+	/** Marks a free slot, the value itself is tracked with m_hasFree */
+	private static final int FREE = 0;
+
+	private int[] m_keys;
+	private int m_mask;
+	private int m_size = 0;
+	private boolean m_hasFree = false;
+
+	IntHashSet() {
+		this(16);
+	}
+
+	/**
+	 * @param expected expected number of elements
+	 */
+	IntHashSet(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+		m_keys = new int[capacity];
+		m_mask = capacity - 1;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value was not in the set
+	 */
+	boolean add(int value) {
+		if (value == FREE) {
+			if (m_hasFree)
+				return false;
+			m_hasFree = true;
+			m_size++;
+			return true;
+		}
+		int idx = mix(value) & m_mask;
+		while (m_keys[idx] != FREE) {
+			if (m_keys[idx] == value)
+				return false;
+			idx = (idx + 1) & m_mask;
+		}
+		m_keys[idx] = value;
+		m_size++;
+		if (m_size * 2 > m_keys.length)
+			rehash(m_keys.length << 1);
+		return true;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is in the set
+	 */
+	boolean contains(int value) {
+		if (value == FREE)
+			return m_hasFree;
+		int idx = mix(value) & m_mask;
+		int key;
+		while ((key = m_keys[idx]) != FREE) {
+			if (key == value)
+				return true;
+			idx = (idx + 1) & m_mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return m_size;
+	}
+
+	void clear() {
+		Arrays.fill(m_keys, FREE);
+		m_size = 0;
+		m_hasFree = false;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = m_keys;
+		m_keys = new int[capacity];
+		m_mask = capacity - 1;
+		for (int key : old) {
+			if (key == FREE)
+				continue;
+			int idx = mix(key) & m_mask;
+			while (m_keys[idx] != FREE)
+				idx = (idx + 1) & m_mask;
+			m_keys[idx] = key;
+		}
+	}
+
+	/** Spread sequential ids, Umsatz_Id are mostly consecutive numbers */
+	private static int mix(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -1,257 +1,842 @@
-/**********************************************************************
- * This file is part of iDempiere ERP Open Source                      *
- * http://www.idempiere.org                                            *
- *                                                                     *
- * Copyright (C) Contributors                                          *
- *                                                                     *
- * This program is free software; you can redistribute it and/or       *
- * modify it under the terms of the GNU General Public License         *
- * as published by the Free Software Foundation; either version 2      *
- * of the License, or (at your option) any later version.              *
- *                                                                     *
- * This program is distributed in the hope that it will be useful,     *
- * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
- * GNU General Public License for more details.                        *
- *                                                                     *
- * You should have received a copy of the GNU General Public License   *
- * along with this program; if not, write to the Free Software         *
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
- * MA 02110-1301, USA.                                                 *
- *                                                                     *
- * Contributors:                                                       *
- * - Carlos Ruiz - globalqss - bxservice                               *
- **********************************************************************/
-
-package de.bxservice.hibiscus;
-
-import java.math.BigDecimal;
-
-import org.adempiere.exceptions.AdempiereException;
-import org.adempiere.util.ProcessUtil;
-import org.compiere.model.MBankAccount;
-import org.compiere.model.MBankStatement;
-import org.compiere.model.MBankStatementLoader;
-import org.compiere.model.MPInstance;
-import org.compiere.model.MProcess;
-import org.compiere.model.MProcessPara;
-import org.compiere.model.Query;
-import org.compiere.model.X_I_BankStatement;
-import org.compiere.process.ProcessInfo;
-import org.compiere.process.ProcessInfoLog;
-import org.compiere.process.ProcessInfoParameter;
-import org.compiere.process.SvrProcess;
-import org.compiere.util.Msg;
-import org.compiere.util.Trx;
-
-@org.adempiere.base.annotation.Process
-public class LoadImportProcessBankStatement extends SvrProcess {
-
-	/* Bank Statement Loader */
-	private int p_C_BankStatementLoader_ID = 0;
-	/* File Name */
-	private String p_FileName = null;
-	/* Match Bank Statement */
-	private Boolean p_BAY_IsMatchBS = null;
-	/* Create Payments from Bank Statement */
-	private Boolean p_BAY_IsCreatePaymentsBS = null;
-
-	/* Bank Account */
-	private int p_C_BankAccount_ID = 0;
-
-	/* Process IDs */
-	public final static int PROCESS_DELETE_IMPORT = 248;
-	public final static int PROCESS_LOAD_BANK_STATEMENT = 247;
-	public final static int PROCESS_IMPORT_BANK_STATEMENT = 221;
-	public final static int PROCESS_MATCH_BANK_STATEMENT = 256;
-	public final static int PROCESS_CREATE_PAYMENT = 257;
-
-	@Override
-	protected void prepare() {
-		for (ProcessInfoParameter para : getParameter()) {
-			String name = para.getParameterName();
-			switch (name) {
-			case "C_BankStatementLoader_ID":
-				p_C_BankStatementLoader_ID = para.getParameterAsInt();
-				break;
-			case "FileName":
-				p_FileName = para.getParameterAsString();
-				break;
-			case "BAY_IsMatchBS":
-				p_BAY_IsMatchBS = para.getParameterAsBoolean();
-				break;
-			case "BAY_IsCreatePaymentsBS":
-				p_BAY_IsCreatePaymentsBS = para.getParameterAsBoolean();
-				break;
-			default:
-				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
-			}
-		}
-	}
-
-	/**
-	 * Perform process.
-	 * 
-	 * @return Message
-	 * @throws Exception
-	 */
-	protected String doIt() throws java.lang.Exception {
-
-		deleteImport();
-
-		MBankStatementLoader bsl = new MBankStatementLoader(getCtx(), p_C_BankStatementLoader_ID, get_TrxName());
-		p_C_BankAccount_ID = bsl.getC_BankAccount_ID();
-
-		loadBankStatement();
-
-		importBankStatement();
-
-		MBankStatement bs = new Query(getCtx(), MBankStatement.Table_Name, "C_BankAccount_ID=? AND DocStatus='DR'", get_TrxName())
-				.setOrderBy("C_BankStatement_ID DESC")
-				.setParameters(p_C_BankAccount_ID)
-				.first();
-
-		if (p_BAY_IsMatchBS)
-			matchBankStatement(bs);
-
-		if (p_BAY_IsMatchBS && p_BAY_IsCreatePaymentsBS)
-			createPayments(bs);
-
-		return "@OK@";
-	}
-
-	private void deleteImport() {
-		int processIdDI = PROCESS_DELETE_IMPORT;
-		MProcess procDI = new MProcess(getCtx(), processIdDI, get_TrxName());
-
-		MPInstance instanceDI = new MPInstance(procDI, 0, -1, null);
-		instanceDI.saveEx();
-		ProcessInfo poInfoDI = new ProcessInfo(procDI.getName(), procDI.getAD_Process_ID());
-		ProcessInfoParameter pipTbl = new ProcessInfoParameter("AD_Table_ID", BigDecimal.valueOf(X_I_BankStatement.Table_ID), null, String.valueOf(X_I_BankStatement.Table_ID), null);
-		poInfoDI.setParameter(new ProcessInfoParameter[] {pipTbl});
-		poInfoDI.setAD_Process_ID(procDI.getAD_Process_ID());
-		poInfoDI.setAD_PInstance_ID(instanceDI.getAD_PInstance_ID());
-		poInfoDI.setAD_Process_UU(procDI.getAD_Process_UU());
-		poInfoDI.setClassName(procDI.getClassname());
-
-		ProcessUtil.startJavaProcess(getCtx(), poInfoDI, Trx.get(get_TrxName(), false), false);
-
-		if (poInfoDI.isError())
-			throw new AdempiereException(Msg.getMsg(getCtx(), "Error") + " " + procDI.get_Translation(MProcess.COLUMNNAME_Name) + " -> " +  poInfoDI.getSummary());
-		addBufferLog(0, null, null, "** " + procDI.get_Translation(MProcess.COLUMNNAME_Name) + " **", 0, -1);
-		if (poInfoDI.getLogs() != null)
-			for (ProcessInfoLog log : poInfoDI.getLogs())
-				addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), log.getP_Msg(), log.getAD_Table_ID(), log.getRecord_ID());
-		addBufferLog(0, null, null, poInfoDI.getSummary(), 0, -1);
-	}
-
-	private void loadBankStatement() {
-		int processIdLBS = PROCESS_LOAD_BANK_STATEMENT;
-		MProcess procLBS = new MProcess(getCtx(), processIdLBS, get_TrxName());
-
-		MPInstance instanceLBS = new MPInstance(procLBS, 0, -1, null);
-		instanceLBS.saveEx();
-		ProcessInfo poInfoLBS = new ProcessInfo(procLBS.getName(), procLBS.getAD_Process_ID());
-		ProcessInfoParameter pipBSL = new ProcessInfoParameter("C_BankStatementLoader_ID", BigDecimal.valueOf(p_C_BankStatementLoader_ID), null, String.valueOf(p_C_BankStatementLoader_ID), null);
-		ProcessInfoParameter pipFN = new ProcessInfoParameter("FileName", p_FileName, null, p_FileName, null);
-		poInfoLBS.setParameter(new ProcessInfoParameter[] {pipBSL, pipFN});
-		poInfoLBS.setAD_Process_ID(procLBS.getAD_Process_ID());
-		poInfoLBS.setAD_PInstance_ID(instanceLBS.getAD_PInstance_ID());
-		poInfoLBS.setAD_Process_UU(procLBS.getAD_Process_UU());
-		poInfoLBS.setClassName(procLBS.getClassname());
-
-		ProcessUtil.startJavaProcess(getCtx(), poInfoLBS, Trx.get(get_TrxName(), false), false);
-
-		if (poInfoLBS.isError())
-			throw new AdempiereException(Msg.getMsg(getCtx(), "Error") + " " + procLBS.get_Translation(MProcess.COLUMNNAME_Name) + " -> " +  poInfoLBS.getSummary());
-		addBufferLog(0, null, null, "** " + procLBS.get_Translation(MProcess.COLUMNNAME_Name) + " **", 0, -1);
-		if (poInfoLBS.getLogs() != null)
-			for (ProcessInfoLog log : poInfoLBS.getLogs())
-				addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), log.getP_Msg(), log.getAD_Table_ID(), log.getRecord_ID());
-		addBufferLog(0, null, null, poInfoLBS.getSummary(), 0, -1);
-	}
-
-	private void importBankStatement() {
-		int processIdIBS = PROCESS_IMPORT_BANK_STATEMENT;
-		MProcess procIBS = new MProcess(getCtx(), processIdIBS, get_TrxName());
-
-		MPInstance instanceIBS = new MPInstance(procIBS, 0, -1, null);
-		instanceIBS.saveEx();
-
-		MBankAccount bankAccount = MBankAccount.get(p_C_BankAccount_ID);
-
-		ProcessInfo poInfoIBS = new ProcessInfo(procIBS.getName(), procIBS.getAD_Process_ID());
-		ProcessInfoParameter pipCl = new ProcessInfoParameter("AD_Client_ID", BigDecimal.valueOf(getAD_Client_ID()), null, String.valueOf(getAD_Client_ID()), null);
-		ProcessInfoParameter pipOrg = new ProcessInfoParameter("AD_Org_ID", BigDecimal.valueOf(bankAccount.getAD_Org_ID()), null, String.valueOf(bankAccount.getAD_Org_ID()), null);
-		ProcessInfoParameter pipBA = new ProcessInfoParameter("C_BankAccount_ID", BigDecimal.valueOf(p_C_BankAccount_ID), null, String.valueOf(p_C_BankAccount_ID), null);
-		ProcessInfoParameter pipDel = new ProcessInfoParameter("DeleteOldImported", "Y", null, "Y", null);
-		poInfoIBS.setParameter(new ProcessInfoParameter[] {pipCl, pipOrg, pipBA, pipDel});
-		poInfoIBS.setAD_Process_ID(procIBS.getAD_Process_ID());
-		poInfoIBS.setAD_PInstance_ID(instanceIBS.getAD_PInstance_ID());
-		poInfoIBS.setAD_Process_UU(procIBS.getAD_Process_UU());
-		poInfoIBS.setClassName(procIBS.getClassname());
-
-		ProcessUtil.startJavaProcess(getCtx(), poInfoIBS, Trx.get(get_TrxName(), false), false);
-
-		if (poInfoIBS.isError())
-			throw new AdempiereException(Msg.getMsg(getCtx(), "Error") + " " + procIBS.get_Translation(MProcess.COLUMNNAME_Name) + " -> " +  poInfoIBS.getSummary());
-		addBufferLog(0, null, null, "** " + procIBS.get_Translation(MProcess.COLUMNNAME_Name) + " **", 0, -1);
-		if (poInfoIBS.getLogs() != null)
-			for (ProcessInfoLog log : poInfoIBS.getLogs())
-				addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), Msg.parseTranslation(getCtx(), log.getP_Msg()), log.getAD_Table_ID(), log.getRecord_ID());
-		addBufferLog(0, null, null, poInfoIBS.getSummary(), 0, -1);
-	}
-
-	private void matchBankStatement(MBankStatement bs) {
-		int processIdMBS = PROCESS_MATCH_BANK_STATEMENT;
-		MProcess procMBS = new MProcess(getCtx(), processIdMBS, get_TrxName());
-
-		MPInstance instanceMBS = new MPInstance(procMBS, MBankStatement.Table_ID, bs.getC_BankStatement_ID(), bs.getC_BankStatement_UU());
-		instanceMBS.saveEx();
-
-		ProcessInfo poInfoMBS = new ProcessInfo(procMBS.getName(), procMBS.getAD_Process_ID());
-		poInfoMBS.setTable_ID(MBankStatement.Table_ID);
-		poInfoMBS.setRecord_ID(bs.getC_BankStatement_ID());
-		poInfoMBS.setAD_Process_ID(procMBS.getAD_Process_ID());
-		poInfoMBS.setAD_PInstance_ID(instanceMBS.getAD_PInstance_ID());
-		poInfoMBS.setAD_Process_UU(procMBS.getAD_Process_UU());
-		poInfoMBS.setClassName(procMBS.getClassname());
-
-		ProcessUtil.startJavaProcess(getCtx(), poInfoMBS, Trx.get(get_TrxName(), false), false);
-
-		if (poInfoMBS.isError())
-			throw new AdempiereException(Msg.getMsg(getCtx(), "Error") + " " + procMBS.get_Translation(MProcess.COLUMNNAME_Name) + " -> " +  poInfoMBS.getSummary());
-		addBufferLog(0, null, null, "** " + procMBS.get_Translation(MProcess.COLUMNNAME_Name) + " " + bs.getDocumentNo() + " **", MBankStatement.Table_ID, bs.getC_BankStatement_ID());
-		if (poInfoMBS.getLogs() != null)
-			for (ProcessInfoLog log : poInfoMBS.getLogs())
-				addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), log.getP_Msg(), log.getAD_Table_ID(), log.getRecord_ID());
-		addBufferLog(0, null, null, poInfoMBS.getSummary(), 0, -1);
-	}
-
-	private void createPayments(MBankStatement bs) {
-		int processIdCP = PROCESS_CREATE_PAYMENT;
-		MProcess procCP = new MProcess(getCtx(), processIdCP, get_TrxName());
-
-		MPInstance instanceCP = new MPInstance(procCP, MBankStatement.Table_ID, bs.getC_BankStatement_ID(), bs.getC_BankStatement_UU());
-		instanceCP.saveEx();
-
-		ProcessInfo poInfoCP = new ProcessInfo(procCP.getName(), procCP.getAD_Process_ID());
-		poInfoCP.setTable_ID(MBankStatement.Table_ID);
-		poInfoCP.setRecord_ID(bs.getC_BankStatement_ID());
-		poInfoCP.setAD_Process_ID(procCP.getAD_Process_ID());
-		poInfoCP.setAD_PInstance_ID(instanceCP.getAD_PInstance_ID());
-		poInfoCP.setAD_Process_UU(procCP.getAD_Process_UU());
-		poInfoCP.setClassName(procCP.getClassname());
-
-		ProcessUtil.startJavaProcess(getCtx(), poInfoCP, Trx.get(get_TrxName(), false), false);
-
-		if (poInfoCP.isError())
-			throw new AdempiereException(Msg.getMsg(getCtx(), "Error") + " " + procCP.get_Translation(MProcess.COLUMNNAME_Name) + " -> " +  poInfoCP.getSummary());
-		addBufferLog(0, null, null, "** " + procCP.get_Translation(MProcess.COLUMNNAME_Name) + " " + bs.getDocumentNo() + " **", MBankStatement.Table_ID, bs.getC_BankStatement_ID());
-		if (poInfoCP.getLogs() != null)
-			for (ProcessInfoLog log : poInfoCP.getLogs())
-				addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), log.getP_Msg(), log.getAD_Table_ID(), log.getRecord_ID());
-		addBufferLog(0, null, null, poInfoCP.getSummary(), 0, -1);
-	}
-
-}
\ No newline at end of file
+/**********************************************************************
+ * This file is part of iDempiere ERP Open Source                      *
+ * http://www.idempiere.org                                            *
+ *                                                                     *
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Carlos Ruiz - globalqss - bxservice                               *
+ **********************************************************************/
+
+package de.bxservice.hibiscus;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.adempiere.exceptions.DBException;
+import org.adempiere.util.ProcessUtil;
+import org.compiere.model.MBankStatement;
+import org.compiere.model.MBankStatementLoader;
+import org.compiere.model.MPInstance;
+import org.compiere.model.MProcess;
+import org.compiere.model.MProcessPara;
+import org.compiere.model.MSysConfig;
+import org.compiere.model.Query;
+import org.compiere.process.ProcessInfo;
+import org.compiere.process.ProcessInfoLog;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Msg;
+import org.compiere.util.Trx;
+
+/**
+ * Delete, load, import, match and create payments for a Hibiscus CSV file.
+ *
+ * FileName can also be a directory (all the .csv, .gz and .zip files in it) or a list of files separated by semicolon,
+ * the files are grouped by the bank account of their first row and the accounts are processed
+ * concurrently, see SysConfig BXS_HIBISCUS_IMPORT_THREADS (default 4).
+ * A zip archive holding the CSV files of several bank accounts is split in one archive per account,
+ * imported with the files of the account
+ *
+ * The standard processes are executed in process as the stages of HibiscusImportStage, selected and ordered
+ * with BAY_ImportStages, each stage logs the rows it affected and its elapsed time,
+ * the same values are accumulated in the MBeans of HibiscusStageMetrics.
+ * The current stage, the rows loaded and the estimated time remaining of the load are shown
+ * in the status of the process dialog, see HibiscusProgress
+ */
+@org.adempiere.base.annotation.Process
+public class LoadImportProcessBankStatement extends SvrProcess {
+
+	/* Bank Statement Loader */
+	private int p_C_BankStatementLoader_ID = 0;
+	/* File Name */
+	private String p_FileName = null;
+	/* Match Bank Statement */
+	private Boolean p_BAY_IsMatchBS = null;
+	/* Create Payments from Bank Statement */
+	private Boolean p_BAY_IsCreatePaymentsBS = null;
+	/* Validate Only */
+	private boolean p_BAY_IsValidateOnly = false;
+	/* Import Stages */
+	private String p_BAY_ImportStages = null;
+	/* Full Import, the rows below the watermark are not skipped */
+	private boolean p_BAY_IsFullImport = false;
+
+	/* Bank Account */
+	private int p_C_BankAccount_ID = 0;
+
+	/* Stages to execute, in order */
+	private List<HibiscusImportStage> m_stages = null;
+	/** Files imported with errors by importFiles */
+	private int m_fileErrors = 0;
+	/* Rows and time of each stage */
+	private final Map<HibiscusImportStage, HibiscusImportStage.Stats> m_stats = new EnumMap<HibiscusImportStage, HibiscusImportStage.Stats>(HibiscusImportStage.class);
+	/* Receiver of the progress of all the runs */
+	private final HibiscusProgress.Listener m_progressListener = this::updateStatus;
+
+	/* Process IDs */
+	public final static int PROCESS_DELETE_IMPORT = 248;
+	public final static int PROCESS_LOAD_BANK_STATEMENT = 247;
+	public final static int PROCESS_IMPORT_BANK_STATEMENT = 221;
+	public final static int PROCESS_MATCH_BANK_STATEMENT = 256;
+	public final static int PROCESS_CREATE_PAYMENT = 257;
+
+	/** Separator of the file list in FileName */
+	public final static String FILE_SEPARATOR = ";";
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "C_BankStatementLoader_ID":
+				p_C_BankStatementLoader_ID = para.getParameterAsInt();
+				break;
+			case "FileName":
+				p_FileName = para.getParameterAsString();
+				break;
+			case "BAY_IsMatchBS":
+				p_BAY_IsMatchBS = para.getParameterAsBoolean();
+				break;
+			case "BAY_IsCreatePaymentsBS":
+				p_BAY_IsCreatePaymentsBS = para.getParameterAsBoolean();
+				break;
+			case "BAY_IsValidateOnly":
+				p_BAY_IsValidateOnly = para.getParameterAsBoolean();
+				break;
+			case "BAY_ImportStages":
+				p_BAY_ImportStages = para.getParameterAsString();
+				break;
+			case "BAY_IsFullImport":
+				p_BAY_IsFullImport = para.getParameterAsBoolean();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+	}
+
+	/**
+	 * Perform process.
+	 * 
+	 * @return Message
+	 * @throws Exception
+	 */
+	protected String doIt() throws java.lang.Exception {
+		// read by the loader from the context of the load, the context of the worker threads is copied from this one
+		if (p_BAY_IsFullImport)
+			Env.setContext(getCtx(), HibiscusImportSettings.CTX_FULL_IMPORT, "Y");
+		try {
+			return loadImportProcess();
+		} finally {
+			if (p_BAY_IsFullImport)
+				Env.setContext(getCtx(), HibiscusImportSettings.CTX_FULL_IMPORT, (String) null);
+		}
+	}
+
+	/**
+	 * Validate or import the files of FileName
+	 * @return Message
+	 * @throws Exception
+	 */
+	private String loadImportProcess() throws Exception {
+		MBankStatementLoader bsl = new MBankStatementLoader(getCtx(), p_C_BankStatementLoader_ID, get_TrxName());
+		p_C_BankAccount_ID = bsl.getC_BankAccount_ID();
+
+		boolean multiple = p_FileName != null && (p_FileName.contains(FILE_SEPARATOR) || new File(p_FileName).isDirectory());
+		if (p_BAY_IsValidateOnly)
+			return validateFiles(multiple ? getFiles(p_FileName) : Arrays.asList(new File(p_FileName)));
+
+		m_stages = getStages();
+
+		if (multiple)
+			return importFiles(getFiles(p_FileName));
+
+		// the account of the loader, or of the file when the loader has none, limits the cleanup of the import table,
+		// the file is always read to find an archive holding several bank accounts
+		Map<Integer, List<Integer>> accounts = getBankAccounts(new File(p_FileName));
+		if (accounts.size() > 1) {
+			// each bank account of the archive is imported like the files of a folder
+			String summary = importFiles(Arrays.asList(new File(p_FileName)));
+			if (m_fileErrors > 0)
+				throw new AdempiereException(summary);
+			return summary;
+		}
+		int fileBankAccount_ID = accounts.isEmpty() ? 0 : accounts.keySet().iterator().next();
+		int C_BankAccount_ID = p_C_BankAccount_ID > 0 ? p_C_BankAccount_ID : fileBankAccount_ID;
+		ImportRun run = new ImportRun(getCtx(), get_TrxName(), new HibiscusProgress(m_progressListener, new File(p_FileName).getName()));
+		try {
+			run.runStages(m_stages, run.newInput(p_FileName, C_BankAccount_ID));
+		} finally {
+			addBufferLogs(run.logs);
+		}
+
+		return "@OK@";
+	}
+
+	/**
+	 * @return stages of BAY_ImportStages, without match and create payments when they are not selected
+	 */
+	private List<HibiscusImportStage> getStages() {
+		List<HibiscusImportStage> stages = HibiscusImportStage.parse(p_BAY_ImportStages);
+		if (!p_BAY_IsMatchBS)
+			stages.remove(HibiscusImportStage.MATCH);
+		if (!p_BAY_IsMatchBS || !p_BAY_IsCreatePaymentsBS)
+			stages.remove(HibiscusImportStage.CREATE_PAYMENT);
+		return stages;
+	}
+
+	/**
+	 * @param fileName directory or list of files separated by semicolon
+	 * @return files to import, sorted by name when reading a directory
+	 */
+	private List<File> getFiles(String fileName) {
+		List<File> files = new ArrayList<File>();
+		File dir = new File(fileName);
+		if (dir.isDirectory()) {
+			File[] csvs = dir.listFiles((d, name) -> {
+				String lower = name.toLowerCase();
+				if (lower.endsWith(".rejected.csv"))
+					return false;
+				return lower.endsWith(".csv") || lower.endsWith(".gz") || lower.endsWith(".zip");
+			});
+			if (csvs != null) {
+				Arrays.sort(csvs);
+				for (File csv : csvs) {
+					if (csv.isFile())
+						files.add(csv);
+				}
+			}
+		} else {
+			for (String name : fileName.split(FILE_SEPARATOR)) {
+				if (name.trim().length() > 0)
+					files.add(new File(name.trim()));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Check the files without loading them, all the problems of each file are reported in the log
+	 * @param files
+	 * @return summary
+	 */
+	private String validateFiles(List<File> files) {
+		if (files.isEmpty())
+			throw new AdempiereException(Msg.getMsg(getCtx(), "FileNotFound") + " " + p_FileName);
+		int errors = 0;
+		for (File file : files) {
+			MBankStatementLoader bsl = new MBankStatementLoader(getCtx(), p_C_BankStatementLoader_ID, file.getAbsolutePath(), get_TrxName());
+			if (!HibiscusLoader.class.getName().equals(bsl.getStmtLoaderClass()))
+				throw new AdempiereException("Validate only is supported for " + HibiscusLoader.class.getName());
+			HibiscusLoader loader = new HibiscusLoader();
+			loader.init(bsl);
+			List<String> problems = loader.validateLines();
+			addBufferLog(0, null, BigDecimal.valueOf(problems.size()), "** " + file.getName() + " **", 0, -1);
+			for (String problem : problems)
+				addBufferLog(0, null, null, problem, 0, -1);
+			errors += problems.size();
+		}
+		if (errors > 0)
+			return "@Error@ " + errors;
+		return "@OK@";
+	}
+
+	/**
+	 * Import several files, grouped by bank account. The accounts are processed concurrently, the files of
+	 * the same account one after another in file order, each file in its own transaction
+	 * @param files
+	 * @return summary
+	 * @throws Exception
+	 */
+	private String importFiles(List<File> files) throws Exception {
+		if (files.isEmpty())
+			throw new AdempiereException(Msg.getMsg(getCtx(), "FileNotFound") + " " + p_FileName);
+
+		// the account level stages are executed once per account, before or after the stages of the files
+		List<HibiscusImportStage> before = new ArrayList<HibiscusImportStage>();
+		List<HibiscusImportStage> fileStages = new ArrayList<HibiscusImportStage>();
+		List<HibiscusImportStage> after = new ArrayList<HibiscusImportStage>();
+		for (HibiscusImportStage stage : m_stages) {
+			if (!stage.isAccountLevel())
+				fileStages.add(stage);
+			else if (fileStages.isEmpty())
+				before.add(stage);
+			else
+				after.add(stage);
+		}
+
+		Map<Integer, List<File>> groups = new LinkedHashMap<Integer, List<File>>();
+		// archives holding several bank accounts are split, each part is imported with the files of its account
+		Map<File, Collection<File>> splits = new LinkedHashMap<File, Collection<File>>();
+		for (File file : files) {
+			Map<Integer, List<Integer>> accounts = getBankAccounts(file);
+			if (accounts.size() > 1) {
+				Map<Integer, File> parts = splitArchive(file, accounts);
+				splits.put(file, parts.values());
+				for (Map.Entry<Integer, File> part : parts.entrySet())
+					groups.computeIfAbsent(part.getKey(), k -> new ArrayList<File>()).add(part.getValue());
+			} else {
+				Integer C_BankAccount_ID = accounts.isEmpty() ? Integer.valueOf(0) : accounts.keySet().iterator().next();
+				groups.computeIfAbsent(C_BankAccount_ID, k -> new ArrayList<File>()).add(file);
+			}
+		}
+
+		int threads = MSysConfig.getIntValue("BXS_HIBISCUS_IMPORT_THREADS", 4, getAD_Client_ID());
+		threads = Math.max(1, Math.min(threads, groups.size()));
+		// the threads are created by this thread, so they inherit its context
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger m_count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HibiscusImport-" + m_count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<Future<List<FileResult>>> futures = new ArrayList<Future<List<FileResult>>>();
+		List<FileResult> results = new ArrayList<FileResult>();
+		try {
+			for (Map.Entry<Integer, List<File>> group : groups.entrySet()) {
+				final int C_BankAccount_ID = group.getKey().intValue();
+				final List<File> groupFiles = group.getValue();
+				futures.add(pool.submit(() -> importAccount(C_BankAccount_ID, groupFiles, before, fileStages, after)));
+			}
+
+			for (Future<List<FileResult>> future : futures)
+				results.addAll(future.get());
+		} finally {
+			pool.shutdownNow();
+		}
+		deleteSplits(splits, results);
+
+		// the logs are written by the process thread, in file order of each account
+		int errors = 0;
+		for (FileResult result : results) {
+			addBufferLog(0, null, null, "** " + result.file.getName() + " **", 0, -1);
+			addBufferLogs(result.logs);
+			for (Map.Entry<HibiscusImportStage, HibiscusImportStage.Stats> stats : result.stats.entrySet())
+				getStats(m_stats, stats.getKey()).add(stats.getValue());
+		}
+		for (FileResult result : results) {
+			String outcome;
+			if (result.error == null) {
+				outcome = "@OK@";
+			} else {
+				outcome = "@Error@ " + result.error;
+				errors++;
+			}
+			addBufferLog(0, null, BigDecimal.valueOf(result.millis), result.file.getName() + " -> " + outcome + " (ms)", 0, -1);
+		}
+
+		// rows and time of each stage for all the files
+		for (Map.Entry<HibiscusImportStage, HibiscusImportStage.Stats> stats : m_stats.entrySet()) {
+			MProcess process = MProcess.get(getCtx(), stats.getKey().getAD_Process_ID());
+			addBufferLog(0, null, BigDecimal.valueOf(stats.getValue().rows),
+					process.get_Translation(MProcess.COLUMNNAME_Name) + " -> " + stats.getValue().runs + " x, " + stats.getValue().millis + " ms, "
+					+ HibiscusStageMetrics.rowsPerSecond(stats.getValue().rows, stats.getValue().millis) + " rows/s", 0, -1);
+		}
+
+		m_fileErrors = errors;
+		if (errors > 0)
+			return "@Error@ " + errors + " / " + results.size();
+		return "@OK@ " + results.size();
+	}
+
+	/**
+	 * Delete the archives of each bank account of the archives imported without errors,
+	 * the ones of a failed import are kept for its checkpoint
+	 * @param splits archives of each bank account by archive split
+	 * @param results
+	 */
+	private void deleteSplits(Map<File, Collection<File>> splits, List<FileResult> results) {
+		for (Map.Entry<File, Collection<File>> split : splits.entrySet()) {
+			boolean ok = true;
+			for (FileResult result : results) {
+				if (result.error != null && split.getValue().contains(result.file))
+					ok = false;
+			}
+			if (!ok)
+				continue;
+			for (File part : split.getValue())
+				part.delete();
+			getSplitFolder(split.getKey()).delete();
+		}
+	}
+
+	/**
+	 * Get the bank accounts of the file from the first row of each CSV file, a zip archive can hold the CSV files of several accounts
+	 * @param file
+	 * @return position of the CSV files in the file by C_BankAccount_ID, in file order, the account is 0 when it cannot be found,
+	 * the load of the file reports the error
+	 */
+	private Map<Integer, List<Integer>> getBankAccounts(File file) {
+		Map<Integer, List<Integer>> accounts = new LinkedHashMap<Integer, List<Integer>>();
+		HibiscusInput input = null;
+		try {
+			input = HibiscusInput.open(file);
+			int part = -1;
+			while (input.next()) {
+				part++;
+				HibiscusCSVReader reader = new HibiscusCSVReader(input.getReader());
+				reader.readHeader();
+				HibiscusRow row = new HibiscusRow();
+				if (!reader.next(row))
+					continue;
+				int account = HibiscusLoader.findBankAccount(getAD_Client_ID(), row.get(HibiscusRow.Konto_AccountNo), row.get(HibiscusRow.Konto_RoutingNo), get_TrxName());
+				accounts.computeIfAbsent(Math.max(account, 0), k -> new ArrayList<Integer>()).add(part);
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, file.getName(), e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (Exception e) {}
+			}
+		}
+		return accounts;
+	}
+
+	/**
+	 * Split a zip archive holding the CSV files of several bank accounts in one archive per account,
+	 * written to the folder x.zip.accounts next to it, so each account is loaded, imported and matched on its own.
+	 * The entries keep their content and time, so the archives written again for a failed import are the same
+	 * and the import resumes from their checkpoint
+	 * @param file zip archive
+	 * @param accounts position of the CSV files by bank account, see getBankAccounts
+	 * @return archive of each bank account
+	 * @throws IOException
+	 */
+	private Map<Integer, File> splitArchive(File file, Map<Integer, List<Integer>> accounts) throws IOException {
+		File dir = getSplitFolder(file);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new AdempiereException("Cannot create " + dir.getAbsolutePath());
+		String base = file.getName();
+		if (base.toLowerCase().endsWith(".zip"))
+			base = base.substring(0, base.length() - 4);
+		Map<Integer, File> files = new LinkedHashMap<Integer, File>();
+		Map<Integer, ZipOutputStream> outs = new HashMap<Integer, ZipOutputStream>();
+		Map<Integer, Integer> accountByPart = new HashMap<Integer, Integer>();
+		for (Map.Entry<Integer, List<Integer>> account : accounts.entrySet()) {
+			for (Integer part : account.getValue())
+				accountByPart.put(part, account.getKey());
+		}
+		try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			for (Integer C_BankAccount_ID : accounts.keySet()) {
+				File target = new File(dir, base + "_" + C_BankAccount_ID + ".zip");
+				files.put(C_BankAccount_ID, target);
+				outs.put(C_BankAccount_ID, new ZipOutputStream(new FileOutputStream(target), StandardCharsets.UTF_8));
+			}
+			byte[] buffer = new byte[64 * 1024];
+			int part = -1;
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (entry.isDirectory())
+					continue;
+				part++;
+				// the CSV files without rows are left out
+				Integer C_BankAccount_ID = accountByPart.get(part);
+				if (C_BankAccount_ID == null)
+					continue;
+				ZipOutputStream out = outs.get(C_BankAccount_ID);
+				ZipEntry copy = new ZipEntry(entry.getName());
+				if (entry.getTime() != -1)
+					copy.setTime(entry.getTime());
+				out.putNextEntry(copy);
+				int len;
+				while ((len = zip.read(buffer)) > 0)
+					out.write(buffer, 0, len);
+				out.closeEntry();
+			}
+		} finally {
+			for (ZipOutputStream out : outs.values())
+				out.close();
+		}
+		return files;
+	}
+
+	/**
+	 * @param file zip archive
+	 * @return folder of the archives of each bank account
+	 */
+	private static File getSplitFolder(File file) {
+		return new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".accounts");
+	}
+
+	/**
+	 * Import the files of a bank account, executed on a worker thread
+	 * @param C_BankAccount_ID bank account, 0 when it was not found
+	 * @param files
+	 * @param before account level stages executed with the first file
+	 * @param fileStages stages to execute for each file
+	 * @param after account level stages executed with the last file
+	 * @return result of each file
+	 */
+	private List<FileResult> importAccount(int C_BankAccount_ID, List<File> files, List<HibiscusImportStage> before,
+			List<HibiscusImportStage> fileStages, List<HibiscusImportStage> after) {
+		Properties ctx = new Properties();
+		ctx.putAll(getCtx());
+		if (C_BankAccount_ID <= 0)
+			C_BankAccount_ID = p_C_BankAccount_ID;
+		List<FileResult> results = new ArrayList<FileResult>();
+		for (int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			List<HibiscusImportStage> stages = new ArrayList<HibiscusImportStage>();
+			// without the account the cleanup would delete the rows of the loader of the accounts imported concurrently
+			if (i == 0 && C_BankAccount_ID > 0)
+				stages.addAll(before);
+			stages.addAll(fileStages);
+			if (i == files.size() - 1 && C_BankAccount_ID > 0)
+				stages.addAll(after);
+			FileResult result = new FileResult(file);
+			long start = System.currentTimeMillis();
+			String trxName = Trx.createTrxName("BXSHibiscus");
+			Trx trx = Trx.get(trxName, true);
+			ImportRun run = new ImportRun(ctx, trxName, new HibiscusProgress(m_progressListener, file.getName()));
+			try {
+				run.runStages(stages, run.newInput(file.getAbsolutePath(), C_BankAccount_ID));
+				trx.commit(true);
+			} catch (Exception e) {
+				trx.rollback();
+				result.error = e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString();
+			} finally {
+				trx.close();
+			}
+			result.millis = System.currentTimeMillis() - start;
+			result.logs = run.logs;
+			result.stats = run.stats;
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Show the progress in the status of the process dialog, the runs on worker threads report one at a time
+	 * @param message
+	 */
+	private synchronized void updateStatus(String message) {
+		statusUpdate(message);
+	}
+
+	private static HibiscusImportStage.Stats getStats(Map<HibiscusImportStage, HibiscusImportStage.Stats> stats, HibiscusImportStage stage) {
+		HibiscusImportStage.Stats stageStats = stats.get(stage);
+		if (stageStats == null) {
+			stageStats = new HibiscusImportStage.Stats();
+			stats.put(stage, stageStats);
+		}
+		return stageStats;
+	}
+
+	private void addBufferLogs(List<ProcessInfoLog> logs) {
+		for (ProcessInfoLog log : logs)
+			addBufferLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), log.getP_Msg(), log.getAD_Table_ID(), log.getRecord_ID());
+	}
+
+	/**
+	 * Outcome of the import of one file
+	 */
+	static class FileResult {
+		protected final File file;
+		protected long millis = 0;
+		protected String error = null;
+		protected List<ProcessInfoLog> logs = new ArrayList<ProcessInfoLog>();
+		protected Map<HibiscusImportStage, HibiscusImportStage.Stats> stats = new EnumMap<HibiscusImportStage, HibiscusImportStage.Stats>(HibiscusImportStage.class);
+
+		FileResult(File file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Execution of the stages in a transaction, the logs of the processes are collected
+	 * to be written by the process thread
+	 */
+	class ImportRun {
+
+		private final Properties ctx;
+		private final String trxName;
+		protected final List<ProcessInfoLog> logs = new ArrayList<ProcessInfoLog>();
+		protected final Map<HibiscusImportStage, HibiscusImportStage.Stats> stats = new EnumMap<HibiscusImportStage, HibiscusImportStage.Stats>(HibiscusImportStage.class);
+		/** Progress of the run */
+		private final HibiscusProgress progress;
+
+		ImportRun(Properties ctx, String trxName, HibiscusProgress progress) {
+			this.ctx = ctx;
+			this.trxName = trxName;
+			this.progress = progress;
+		}
+
+		private void addLog(int id, java.sql.Timestamp date, BigDecimal number, String msg, int tableId, int recordId) {
+			logs.add(new ProcessInfoLog(id, date, number, msg, tableId, recordId));
+		}
+
+		/**
+		 * @param fileName file to load, null for the run level stages
+		 * @param C_BankAccount_ID bank account of the file
+		 * @return input of the stages in the transaction of the run
+		 */
+		HibiscusImportStage.Input newInput(String fileName, int C_BankAccount_ID) {
+			HibiscusImportStage.Input input = new HibiscusImportStage.Input(getAD_Client_ID(), trxName, p_C_BankStatementLoader_ID);
+			input.fileName = fileName;
+			input.C_BankAccount_ID = C_BankAccount_ID;
+			return input;
+		}
+
+		/**
+		 * Execute the stages in order
+		 * @param stages
+		 * @param input
+		 */
+		void runStages(List<HibiscusImportStage> stages, HibiscusImportStage.Input input) {
+			// with chunked commits each stage is committed and a new run of the file continues after the last one
+			HibiscusCheckpoint checkpoint = null;
+			if (input.fileName != null && trxName != null && MSysConfig.getIntValue("BXS_HIBISCUS_COMMIT_EVERY", 0, getAD_Client_ID()) > 0)
+				checkpoint = HibiscusCheckpoint.get(input.fileName);
+			try {
+				if (checkpoint != null)
+					input.lastBankStatement_ID = checkpoint.getLastBankStatement_ID();
+				for (int i = 0; i < stages.size(); i++) {
+					HibiscusImportStage stage = stages.get(i);
+					if (checkpoint != null && checkpoint.isCompleted(stage)) {
+						MProcess process = MProcess.get(ctx, stage.getAD_Process_ID());
+						addLog(0, null, null, process.get_Translation(MProcess.COLUMNNAME_Name) + " -> completed by a previous run", 0, -1);
+						continue;
+					}
+
+					if (stage.isBankStatementRequired()) {
+						// the following stages on statements are executed together, statement by statement
+						List<HibiscusImportStage> statementStages = new ArrayList<HibiscusImportStage>();
+						for (; i < stages.size() && stages.get(i).isBankStatementRequired(); i++) {
+							if (checkpoint == null || !checkpoint.isCompleted(stages.get(i)))
+								statementStages.add(stages.get(i));
+						}
+						i--;
+						runStatementStages(statementStages, input, stages.contains(HibiscusImportStage.IMPORT));
+						if (checkpoint != null) {
+							for (HibiscusImportStage statementStage : statementStages) {
+								commit();
+								checkpoint.saveStage(statementStage);
+							}
+						}
+						continue;
+					}
+
+					if (stage == HibiscusImportStage.IMPORT) {
+						// the old imported rows are kept, the statements of this import are the ones created from now on
+						input.lastBankStatement_ID = findLastStatement(input.C_BankAccount_ID);
+						if (checkpoint != null)
+							checkpoint.saveLastBankStatement_ID(input.lastBankStatement_ID);
+					}
+
+					runStage(stage, input);
+
+					if (checkpoint != null) {
+						commit();
+						checkpoint.saveStage(stage);
+					}
+
+					if (stage == HibiscusImportStage.LOAD && MSysConfig.getBooleanValue("BXS_HIBISCUS_REJECT_INVALID_ROWS", false, getAD_Client_ID())) {
+						File rejectFile = HibiscusRejectWriter.getRejectFile(input.fileName);
+						if (rejectFile.exists())
+							addLog(0, null, null, "Rejected rows -> " + rejectFile.getAbsolutePath(), 0, -1);
+					}
+				}
+				// everything is committed, the next run of the file starts over
+				if (checkpoint != null)
+					checkpoint.delete();
+			} finally {
+				if (checkpoint != null)
+					checkpoint.release();
+			}
+		}
+
+		private void commit() {
+			try {
+				Trx.get(trxName, false).commit(true);
+			} catch (SQLException e) {
+				throw new DBException(e);
+			}
+		}
+
+		/**
+		 * Execute the stages on each statement created by the import, one after the other in the transaction
+		 * of the run. The statements of an account share invoices and business partners, processed
+		 * concurrently they could pay the same invoice twice or deadlock, and a failure rolls back the whole run
+		 * @param stages stages on the statement, in order
+		 * @param input
+		 * @param imported true when the import is part of the stages, the statements are the ones it created,
+		 * otherwise the last draft statement of the bank account is processed
+		 */
+		private void runStatementStages(List<HibiscusImportStage> stages, HibiscusImportStage.Input input, boolean imported) {
+			if (stages.isEmpty())
+				return;
+			int[] ids = imported ? findImportedStatements(input) : findDraftStatement(input.C_BankAccount_ID);
+			// no statement when all the rows were already loaded
+			for (int C_BankStatement_ID : ids) {
+				input.bankStatement = new MBankStatement(ctx, C_BankStatement_ID, trxName);
+				for (HibiscusImportStage stage : stages)
+					runStage(stage, input);
+			}
+			input.bankStatement = null;
+		}
+
+		/**
+		 * @param input
+		 * @return draft statements created by the import of the run for the bank account
+		 */
+		private int[] findImportedStatements(HibiscusImportStage.Input input) {
+			final String sql =
+					"SELECT DISTINCT ibs.C_BankStatement_ID "
+					+ "FROM I_BankStatement ibs "
+					+ "JOIN C_BankStatement bs ON (ibs.C_BankStatement_ID=bs.C_BankStatement_ID) "
+					+ "WHERE ibs.AD_Client_ID=? AND ibs.C_BankAccount_ID=? AND ibs.I_IsImported='Y' AND bs.DocStatus='DR' "
+					+ "AND bs.C_BankStatement_ID>? "
+					+ "ORDER BY ibs.C_BankStatement_ID";
+			return DB.getIDsEx(trxName, sql, input.AD_Client_ID, input.C_BankAccount_ID, Math.max(input.lastBankStatement_ID, 0));
+		}
+
+		/**
+		 * @param C_BankAccount_ID
+		 * @return last statement of the bank account, 0 if there is none
+		 */
+		private int findLastStatement(int C_BankAccount_ID) {
+			int C_BankStatement_ID = DB.getSQLValueEx(trxName, "SELECT MAX(C_BankStatement_ID) FROM C_BankStatement WHERE C_BankAccount_ID=?", C_BankAccount_ID);
+			return Math.max(C_BankStatement_ID, 0);
+		}
+
+		/**
+		 * @param C_BankAccount_ID
+		 * @return last draft statement of the bank account, empty if there is none
+		 */
+		private int[] findDraftStatement(int C_BankAccount_ID) {
+			int C_BankStatement_ID = new Query(ctx, MBankStatement.Table_Name, "C_BankAccount_ID=? AND DocStatus='DR'", trxName)
+					.setOrderBy("C_BankStatement_ID DESC")
+					.setParameters(C_BankAccount_ID)
+					.firstId();
+			return C_BankStatement_ID > 0 ? new int[] {C_BankStatement_ID} : new int[0];
+		}
+
+		/**
+		 * Execute the process of the stage in the transaction of the run, the process definition
+		 * comes from the cache and each execution gets its own instance record, like a process started from the menu
+		 * @param stage
+		 * @param input
+		 */
+		private void runStage(HibiscusImportStage stage, HibiscusImportStage.Input input) {
+			MProcess process = MProcess.get(ctx, stage.getAD_Process_ID());
+			String name = process.get_Translation(MProcess.COLUMNNAME_Name);
+			int rowsBefore = stage.countRows(input);
+			long scansBefore = HibiscusStageMetrics.countTableScans(trxName);
+			long start = System.currentTimeMillis();
+			progress.stage(name, m_stages.indexOf(stage) + 1, m_stages.size());
+
+			ProcessInfo pi = new ProcessInfo(process.getName(), process.getAD_Process_ID());
+			ProcessInfoParameter[] parameters = stage.getParameters(input);
+			if (parameters != null)
+				pi.setParameter(parameters);
+			if (stage.isBankStatementRequired()) {
+				pi.setTable_ID(MBankStatement.Table_ID);
+				pi.setRecord_ID(input.bankStatement.getC_BankStatement_ID());
+			}
+			pi.setAD_Process_ID(process.getAD_Process_ID());
+			pi.setAD_Process_UU(process.getAD_Process_UU());
+			pi.setClassName(process.getClassname());
+
+			// the loader records the details of its phases on this thread
+			List<HibiscusStageMetrics.Sample> samples;
+			HibiscusStageMetrics.beginCapture();
+			progress.attach();
+			// the count of rows before and after
+			long sqlCount = 2;
+			long tableScans = -1;
+			try {
+				if (!stage.execute(input)) {
+					MPInstance instance;
+					if (stage.isBankStatementRequired())
+						instance = new MPInstance(process, MBankStatement.Table_ID, input.bankStatement.getC_BankStatement_ID(), input.bankStatement.getC_BankStatement_UU());
+					else
+						instance = new MPInstance(process, 0, -1, null);
+					instance.saveEx();
+					pi.setAD_PInstance_ID(instance.getAD_PInstance_ID());
+					ProcessUtil.startJavaProcess(ctx, pi, Trx.get(trxName, false), false);
+
+					if (pi.isError())
+						throw new AdempiereException(Msg.getMsg(ctx, "Error") + " " + name + " -> " +  pi.getSummary());
+				}
+			} finally {
+				samples = HibiscusStageMetrics.endCapture();
+				HibiscusProgress.detach();
+			}
+			long millis = System.currentTimeMillis() - start;
+			long scans = HibiscusStageMetrics.countTableScans(trxName);
+			if (scansBefore >= 0 && scans >= 0)
+				tableScans = scans - scansBefore;
+			// the statements of the plugin: the delete or the instance record and the ones of the loader
+			sqlCount++;
+			for (HibiscusStageMetrics.Sample sample : samples)
+				sqlCount += sample.sqlCount;
+			int rows = stage.getRows(rowsBefore, stage.countRows(input));
+			getStats(stats, stage).add(rows, millis);
+			HibiscusStageMetrics.record("Stage." + stage.name(), rows, millis, sqlCount, tableScans);
+
+			if (stage.isBankStatementRequired())
+				addLog(0, null, null, "** " + name + " " + input.bankStatement.getDocumentNo() + " **", MBankStatement.Table_ID, input.bankStatement.getC_BankStatement_ID());
+			else
+				addLog(0, null, null, "** " + name + " **", 0, -1);
+			if (pi.getLogs() != null)
+				for (ProcessInfoLog log : pi.getLogs())
+					addLog(log.getP_ID(), log.getP_Date(), log.getP_Number(), Msg.parseTranslation(ctx, log.getP_Msg()), log.getAD_Table_ID(), log.getRecord_ID());
+			if (pi.getSummary() != null)
+				addLog(0, null, null, pi.getSummary(), 0, -1);
+			for (HibiscusStageMetrics.Sample sample : samples)
+				addLog(0, null, BigDecimal.valueOf(sample.rows), sample.name + " -> " + sample.millis + " ms, "
+						+ HibiscusStageMetrics.rowsPerSecond(sample.rows, sample.millis) + " rows/s, SQL " + sample.sqlCount, 0, -1);
+			addLog(0, null, BigDecimal.valueOf(rows), name + " -> " + millis + " ms, " + HibiscusStageMetrics.rowsPerSecond(rows, millis) + " rows/s, SQL " + sqlCount
+					+ (tableScans >= 0 ? ", table scans " + tableScans : ""), 0, -1);
+		}
+
+	}
+
+}